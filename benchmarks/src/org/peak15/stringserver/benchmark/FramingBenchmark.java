@@ -0,0 +1,78 @@
+package org.peak15.stringserver.benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.peak15.stringserver.LineFramer;
+import org.peak15.stringserver.StringCodec;
+
+/**
+ * Frames packets into lines with the same LineFramer that TcpConnection.readString() uses,
+ * without the socket read, so only the framing and decoding is measured.
+ *
+ * Each invocation feeds the next packet of a stream of complete lines, cycling back to the start
+ * once the stream is used up, so every line that is started is also finished. The shapes cover many
+ * short lines per packet, a line or so per packet, and a long line arriving in pieces across packets.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FramingBenchmark {
+	@Param({"16", "256", "4096"})
+	public int lineLength;
+
+	@Param({"2048"})
+	public int packetSize;
+
+	@Param({"direct", "heap"})
+	public String bufferType;
+
+	// Packets the stream is cut into, the last one holds whatever is left over.
+	private static final int PACKETS = 8;
+
+	private ByteBuffer[] packets;
+	private int next;
+	private LineFramer framer;
+
+	@Setup
+	public void setup() {
+		// Enough whole lines to fill the packets, so the stream ends on a newline.
+		int lines = (PACKETS * packetSize + lineLength) / (lineLength + 1);
+		byte[] bytes = new byte[lines * (lineLength + 1)];
+		for(int i = 0; i < bytes.length; i++) {
+			bytes[i] = (i + 1) % (lineLength + 1) == 0 ? (byte) '\n' : (byte) ('a' + i % 26);
+		}
+
+		packets = new ByteBuffer[(bytes.length + packetSize - 1) / packetSize];
+		for(int i = 0; i < packets.length; i++) {
+			int length = Math.min(packetSize, bytes.length - i * packetSize);
+			packets[i] = bufferType.equals("direct") ? ByteBuffer.allocateDirect(length) : ByteBuffer.allocate(length);
+			packets[i].put(bytes, i * packetSize, length);
+			packets[i].flip();
+		}
+		next = 0;
+
+		framer = new LineFramer(StringCodec.US_ASCII);
+	}
+
+	@Benchmark
+	public void frame(Blackhole blackhole) throws IOException {
+		ByteBuffer packet = packets[next];
+		next = (next + 1) % packets.length;
+		packet.rewind();
+		String line;
+		while((line = framer.nextFrame(packet)) != null) {
+			blackhole.consume(line);
+		}
+	}
+}
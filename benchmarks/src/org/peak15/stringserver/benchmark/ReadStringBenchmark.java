@@ -0,0 +1,85 @@
+package org.peak15.stringserver.benchmark;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+import org.peak15.stringserver.Connection;
+
+/**
+ * Calls TcpConnection.readString() on one end of a loopback connection after writing a packet
+ * to the other end, so the socket read is measured along with the framing.
+ * Each packet holds a whole number of lines.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ReadStringBenchmark {
+	@Param({"16", "256", "4096"})
+	public int lineLength;
+
+	@Param({"1", "16"})
+	public int linesPerPacket;
+
+	private ServerSocketChannel serverChannel;
+	private SocketChannel client;
+	private Connection connection;
+	private ByteBuffer packet;
+
+	@Setup
+	public void setup() throws IOException {
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress("localhost", 0));
+		client = SocketChannel.open(serverChannel.getLocalAddress());
+		SocketChannel accepted = serverChannel.accept();
+		accepted.configureBlocking(false);
+
+		connection = new Connection(null);
+		connection.tcp.setMaxLineLength(Integer.MAX_VALUE);
+		connection.tcp.socketChannel = accepted;
+
+		byte[] bytes = new byte[linesPerPacket * (lineLength + 1)];
+		for(int i = 0; i < bytes.length; i++) {
+			bytes[i] = (i + 1) % (lineLength + 1) == 0 ? (byte) '\n' : (byte) ('a' + i % 26);
+		}
+		packet = ByteBuffer.allocateDirect(bytes.length);
+		packet.put(bytes);
+		packet.flip();
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		connection.tcp.close();
+		client.close();
+		serverChannel.close();
+	}
+
+	@Benchmark
+	public void readString(Blackhole blackhole) throws IOException {
+		packet.rewind();
+		while(packet.hasRemaining()) client.write(packet);
+
+		// Read until every line of the packet has arrived, as the event loop would.
+		int lines = 0;
+		while(lines < linesPerPacket) {
+			String string = connection.tcp.readString(connection);
+			if(string != null) {
+				blackhole.consume(string);
+				lines++;
+			}
+		}
+	}
+}
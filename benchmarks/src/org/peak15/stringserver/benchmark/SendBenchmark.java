@@ -0,0 +1,114 @@
+package org.peak15.stringserver.benchmark;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+import org.peak15.stringserver.BufferPool;
+import org.peak15.stringserver.Connection;
+import org.peak15.stringserver.StringCodec;
+
+/**
+ * Measures TcpConnection.send(), both the encoding step on its own and the full send to a loopback
+ * peer that a background thread drains.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SendBenchmark {
+	@Param({"16", "256", "4096"})
+	public int length;
+
+	@Param({"US-ASCII", "UTF-8"})
+	public String charset;
+
+	private String string;
+	private StringCodec codec;
+	private BufferPool pool;
+
+	private ServerSocketChannel serverChannel;
+	private SocketChannel client;
+	private Connection connection;
+	private Thread drain;
+
+	@Setup
+	public void setup() throws IOException {
+		StringBuilder builder = new StringBuilder();
+		while(builder.length() < length - 1) builder.append((char) ('a' + builder.length() % 26));
+		builder.append('\n');
+		string = builder.toString();
+
+		codec = charset.equals("UTF-8") ? StringCodec.UTF_8 : StringCodec.US_ASCII;
+		pool = new BufferPool(BufferPool.DEFAULT_BUFFER_SIZE, BufferPool.DEFAULT_MAX_POOLED);
+
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress("localhost", 0));
+		client = SocketChannel.open(serverChannel.getLocalAddress());
+		SocketChannel accepted = serverChannel.accept();
+		accepted.configureBlocking(false);
+
+		connection = new Connection(null);
+		connection.tcp.setCodec(codec);
+		connection.tcp.setBufferPool(pool);
+		connection.tcp.socketChannel = accepted;
+
+		drain = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+				try {
+					while(true) {
+						buffer.clear();
+						if(client.read(buffer) < 0) return;
+					}
+				} catch(IOException e) {
+					// Closed by tearDown().
+				}
+			}
+		}, "Send Benchmark Drain");
+		drain.setDaemon(true);
+		drain.start();
+	}
+
+	@TearDown
+	public void tearDown() throws IOException, InterruptedException {
+		connection.tcp.close();
+		client.close();
+		serverChannel.close();
+		drain.join();
+	}
+
+	/**
+	 * The encoding step of send(): one string into a borrowed direct buffer.
+	 */
+	@Benchmark
+	public void encode(Blackhole blackhole) {
+		ByteBuffer buffer = pool.acquire();
+		blackhole.consume(codec.encode(CharBuffer.wrap(string), buffer));
+		pool.release(buffer);
+	}
+
+	/**
+	 * A whole send(), flushing whatever had to be queued so the queue never grows.
+	 */
+	@Benchmark
+	public int send() throws IOException {
+		int length = connection.tcp.send(connection, string);
+		while(connection.tcp.isWritePending()) connection.tcp.writeOperation(connection);
+		return length;
+	}
+}
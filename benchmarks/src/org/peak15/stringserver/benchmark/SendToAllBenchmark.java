@@ -0,0 +1,145 @@
+package org.peak15.stringserver.benchmark;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.peak15.stringserver.Connection;
+import org.peak15.stringserver.Listener;
+import org.peak15.stringserver.StringServer;
+
+/**
+ * Measures StringServer.sendToAll() to loopback clients that a background thread drains.
+ * sendToAll() only queues the string for the event loop, so once any connection has more than its
+ * high watermark queued, the benchmark waits for it to drain before sending again. The score is
+ * then the rate strings are delivered at, rather than how fast they can be queued.
+ * 10,000 connections need a file descriptor limit of at least 20,000.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SendToAllBenchmark {
+	private static final int PORT = 1337;
+	private static final int LOW_WATERMARK = 16 * 1024;
+	private static final int HIGH_WATERMARK = 64 * 1024;
+
+	@Param({"10", "1000", "10000"})
+	public int connections;
+
+	@Param({"100"})
+	public int length;
+
+	private String string;
+	private StringServer server;
+	private Selector selector;
+	private List<SocketChannel> clients;
+	private volatile boolean draining;
+	private Thread drain;
+	// Connections with more than the high watermark queued.
+	private final AtomicInteger unwritable = new AtomicInteger();
+
+	@Setup
+	public void setup() throws IOException, InterruptedException {
+		StringBuilder builder = new StringBuilder();
+		while(builder.length() < length - 1) builder.append((char) ('a' + builder.length() % 26));
+		builder.append('\n');
+		string = builder.toString();
+
+		server = new StringServer(new Listener() {
+			@Override
+			public void connected(Connection connection) {}
+
+			@Override
+			public void disconnected(Connection connection) {}
+
+			@Override
+			public void received(Connection connection, String string) {}
+
+			@Override
+			public void writabilityChanged(Connection connection, boolean writable) {
+				if(writable) unwritable.decrementAndGet();
+				else unwritable.incrementAndGet();
+			}
+		});
+		server.setWriteWatermarks(LOW_WATERMARK, HIGH_WATERMARK);
+		server.setMetricsName("SendToAllBenchmark");
+		server.start();
+		InetSocketAddress address = new InetSocketAddress("localhost", PORT);
+		server.bind(address);
+
+		selector = Selector.open();
+		clients = new ArrayList<SocketChannel>(connections);
+		for(int i = 0; i < connections; i++) {
+			SocketChannel client = SocketChannel.open(address);
+			client.configureBlocking(false);
+			client.register(selector, SelectionKey.OP_READ);
+			clients.add(client);
+		}
+		while(server.getConnections().size() < connections) Thread.sleep(10);
+
+		draining = true;
+		drain = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+				try {
+					while(draining) {
+						selector.select(100);
+						Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+						while(iter.hasNext()) {
+							SelectionKey key = iter.next();
+							iter.remove();
+							buffer.clear();
+							((SocketChannel) key.channel()).read(buffer);
+						}
+					}
+				} catch(IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}, "SendToAll Benchmark Drain");
+		drain.start();
+	}
+
+	/**
+	 * Lets the clients catch up, so queued bytes from one iteration do not slow down the next.
+	 */
+	@TearDown(Level.Iteration)
+	public void waitForDrain() throws InterruptedException {
+		while(server.getMetrics().getTotalQueuedBytes() > 0) Thread.sleep(10);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException, InterruptedException {
+		draining = false;
+		drain.join();
+		for(SocketChannel client : clients) client.close();
+		selector.close();
+		server.stop();
+	}
+
+	@Benchmark
+	public void sendToAll() {
+		server.sendToAll(string);
+		// Keep the backlog bounded, waiting here counts against the score.
+		while(unwritable.get() > 0) Thread.yield();
+	}
+}
@@ -0,0 +1,88 @@
+package org.peak15.stringserver;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A shared pool of direct buffers.
+ * Connections borrow a buffer only for the duration of a read or a write and give it straight back,
+ * so an idle connection holds no buffers at all. Direct buffers also spare NIO the copy it makes
+ * through a temporary direct buffer whenever a heap buffer is read into or written from.
+ */
+public class BufferPool {
+	/**
+	 * Default size of each buffer in bytes.
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 2048;
+
+	/**
+	 * Default number of free buffers kept in the pool.
+	 */
+	public static final int DEFAULT_MAX_POOLED = 256;
+
+	/**
+	 * Pool used by connections that have not been given one.
+	 */
+	public static final BufferPool DEFAULT = new BufferPool(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_POOLED);
+
+	private final int bufferSize;
+	private final int maxPooled;
+	private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicInteger freeCount = new AtomicInteger();
+
+	/**
+	 * Creates a buffer pool.
+	 * @param bufferSize Size of each buffer in bytes.
+	 * @param maxPooled Most free buffers to keep. Buffers released beyond this are left to the garbage
+	 * 		collector, so this bounds idle memory rather than the number of buffers in use.
+	 */
+	public BufferPool(int bufferSize, int maxPooled) {
+		if(bufferSize < 1) throw new IllegalArgumentException("Buffer size must be at least 1.");
+		if(maxPooled < 0) throw new IllegalArgumentException("Pool size cannot be negative.");
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+
+	/**
+	 * Borrows a cleared buffer, allocating one if the pool is empty.
+	 * @return A buffer, which must be given back with release().
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = free.poll();
+		if(buffer == null) return ByteBuffer.allocateDirect(bufferSize);
+		freeCount.decrementAndGet();
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Gives a buffer back to the pool. The buffer must not be used afterwards.
+	 * @param buffer Buffer obtained from acquire().
+	 */
+	public void release(ByteBuffer buffer) {
+		if(freeCount.incrementAndGet() <= maxPooled) {
+			free.add(buffer);
+		}
+		else {
+			freeCount.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Returns the size of each buffer in bytes.
+	 * @return Buffer size.
+	 */
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * Returns the number of free buffers in the pool.
+	 * @return Number of free buffers.
+	 */
+	public int getFreeCount() {
+		return freeCount.get();
+	}
+}
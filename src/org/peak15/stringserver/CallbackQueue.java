@@ -0,0 +1,111 @@
+package org.peak15.stringserver;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs one connection's Listener callbacks on an executor.
+ * Callbacks run one at a time and in the order they were submitted, while the callbacks of
+ * different connections run in parallel. When too many callbacks are waiting, reading from the
+ * connection is suspended until the listener catches up, so TCP pushes back on the client.
+ * If the executor turns a task away, because it is saturated or shut down, the callbacks run on the
+ * thread that submitted them instead, so the connection never stalls waiting for a task that will not come.
+ */
+public class CallbackQueue implements Runnable {
+	// Callbacks run per executor task before yielding the thread to other connections.
+	private static final int BATCH_SIZE = 64;
+
+	private final Connection connection;
+	private final Executor executor;
+	private final int maxPending;
+	private final Queue<Runnable> callbacks = new ConcurrentLinkedQueue<Runnable>();
+	private final AtomicInteger pending = new AtomicInteger();
+
+	/**
+	 * Creates a callback queue.
+	 * @param connection Connection the callbacks belong to.
+	 * @param executor Executor to run the callbacks on.
+	 * @param maxPending Number of waiting callbacks at which reading from the connection is suspended.
+	 */
+	public CallbackQueue(Connection connection, Executor executor, int maxPending) {
+		if(maxPending < 1) throw new IllegalArgumentException("Maximum pending callbacks must be at least 1.");
+		this.connection = connection;
+		this.executor = executor;
+		this.maxPending = maxPending;
+	}
+
+	/**
+	 * Queues a callback, starting a task on the executor if none is running for this connection.
+	 * @param callback Callback to run.
+	 */
+	public void submit(Runnable callback) {
+		callbacks.add(callback);
+		int count = pending.incrementAndGet();
+		if(count == 1) schedule();
+		if(count == maxPending) updateReadSuspension();
+	}
+
+	/**
+	 * Returns the number of callbacks that have been submitted but not finished.
+	 * @return Number of pending callbacks.
+	 */
+	public int getPending() {
+		return pending.get();
+	}
+
+	/**
+	 * Runs queued callbacks until the queue is empty or a batch is done.
+	 */
+	@Override
+	public void run() {
+		// Let other connections have the thread, we will be back.
+		if(runCallbacks(BATCH_SIZE)) schedule();
+	}
+
+	/**
+	 * Starts a task on the executor, or runs every waiting callback right here if it is rejected.
+	 * Only called by whoever holds the queue: the submitter that made it non-empty, or the task that
+	 * ran the last batch.
+	 */
+	private void schedule() {
+		try {
+			executor.execute(this);
+		} catch(RejectedExecutionException e) {
+			StringServer.printDbg(connection + " callback executor rejected a task, running callbacks on " + Thread.currentThread().getName() + ".");
+			runCallbacks(Integer.MAX_VALUE);
+		}
+	}
+
+	/**
+	 * Runs queued callbacks until the queue is empty or the limit is reached.
+	 * @param limit Most callbacks to run.
+	 * @return True if callbacks are still waiting and another task has to run them.
+	 */
+	private boolean runCallbacks(int limit) {
+		for(int i = 1; ; i++) {
+			long start = System.nanoTime();
+			try {
+				callbacks.poll().run();
+			} catch(RuntimeException e) {
+				StringServer.printErr(connection + " listener threw: " + e);
+			}
+			connection.recordCallbackTime(start);
+
+			int remaining = pending.decrementAndGet();
+			if(remaining == maxPending - 1) updateReadSuspension();
+			if(remaining == 0) return false;
+			if(i == limit) return true;
+		}
+	}
+
+	/**
+	 * Suspends or resumes reading based on the current count. Every crossing of the limit calls this
+	 * after changing the count, so whichever call runs last sees the final count.
+	 */
+	private synchronized void updateReadSuspension() {
+		connection.tcp.setReadSuspended(pending.get() >= maxPending);
+	}
+}
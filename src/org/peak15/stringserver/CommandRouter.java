@@ -0,0 +1,135 @@
+package org.peak15.stringserver;
+
+import java.util.Arrays;
+
+/**
+ * A Listener that hands each received string to the handler registered for how it starts.
+ * Commands are kept in a trie, so finding the handler takes one step per character of the command
+ * however many commands there are, instead of trying each one in turn.
+ *
+ * A prefix command matches any string that starts with it. A keyword matches only a whole first
+ * word, one followed by whitespace or the end of the string, so "PING" does not match "PINGALL".
+ * When several commands match, the longest one wins, and a keyword wins over a prefix of the same
+ * length. Strings nothing matches go to the fallback handler.
+ *
+ * Register commands before the server or client is started. Extend this class to act on
+ * connections and disconnections as well.
+ */
+public class CommandRouter implements Listener {
+	private final Node root = new Node();
+	private Handler fallback;
+
+	/**
+	 * Handles the strings routed to one command.
+	 */
+	public interface Handler {
+		/**
+		 * Called with a string that matched the command, on the thread that called Listener.received().
+		 * @param connection Connection the string was received from.
+		 * @param string The whole string, command included.
+		 */
+		public void handle(Connection connection, String string);
+	}
+
+	/**
+	 * A trie node. Children are kept sorted by character and found by binary search.
+	 */
+	private static class Node {
+		char[] keys = new char[0];
+		Node[] children = new Node[0];
+		Handler prefixHandler;
+		Handler keywordHandler;
+
+		Node child(char c) {
+			int index = Arrays.binarySearch(keys, c);
+			return index >= 0 ? children[index] : null;
+		}
+
+		Node addChild(char c) {
+			int index = Arrays.binarySearch(keys, c);
+			if(index >= 0) return children[index];
+			index = -index - 1;
+			char[] newKeys = new char[keys.length + 1];
+			Node[] newChildren = new Node[children.length + 1];
+			System.arraycopy(keys, 0, newKeys, 0, index);
+			System.arraycopy(children, 0, newChildren, 0, index);
+			newKeys[index] = c;
+			newChildren[index] = new Node();
+			System.arraycopy(keys, index, newKeys, index + 1, keys.length - index);
+			System.arraycopy(children, index, newChildren, index + 1, children.length - index);
+			keys = newKeys;
+			children = newChildren;
+			return newChildren[index];
+		}
+	}
+
+	/**
+	 * Routes every string that starts with a prefix to a handler, replacing any handler registered for it.
+	 * @param prefix Prefix to match, case sensitive.
+	 * @param handler Handler to call.
+	 */
+	public void addPrefix(String prefix, Handler handler) {
+		if(prefix.isEmpty()) throw new IllegalArgumentException("Prefix cannot be empty, use setFallback() instead.");
+		nodeFor(prefix).prefixHandler = handler;
+	}
+
+	/**
+	 * Routes every string whose first word is a keyword to a handler, replacing any handler registered for it.
+	 * @param keyword Keyword to match, case sensitive.
+	 * @param handler Handler to call.
+	 */
+	public void addKeyword(String keyword, Handler handler) {
+		if(keyword.isEmpty()) throw new IllegalArgumentException("Keyword cannot be empty, use setFallback() instead.");
+		nodeFor(keyword).keywordHandler = handler;
+	}
+
+	/**
+	 * Sets the handler for strings no command matches. Without one they are ignored.
+	 * @param fallback Handler to call, or null.
+	 */
+	public void setFallback(Handler fallback) {
+		this.fallback = fallback;
+	}
+
+	/**
+	 * Returns the handler a string would be routed to.
+	 * @param string String to route.
+	 * @return Handler of the longest matching command, or the fallback handler if none match.
+	 */
+	public Handler route(String string) {
+		Handler handler = fallback;
+		Node node = root;
+		int length = string.length();
+		for(int i = 0; i < length; i++) {
+			node = node.child(string.charAt(i));
+			if(node == null) break;
+			if(node.keywordHandler != null && (i + 1 == length || Character.isWhitespace(string.charAt(i + 1))))
+				handler = node.keywordHandler;
+			else if(node.prefixHandler != null)
+				handler = node.prefixHandler;
+		}
+		return handler;
+	}
+
+	@Override
+	public void received(Connection connection, String string) {
+		Handler handler = route(string);
+		if(handler != null) handler.handle(connection, string);
+	}
+
+	@Override
+	public void connected(Connection connection) {
+	}
+
+	@Override
+	public void disconnected(Connection connection) {
+	}
+
+	private Node nodeFor(String command) {
+		Node node = root;
+		for(int i = 0; i < command.length(); i++) {
+			node = node.addChild(command.charAt(i));
+		}
+		return node;
+	}
+}
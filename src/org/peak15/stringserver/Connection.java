@@ -1,9 +1,13 @@
 package org.peak15.stringserver;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.Executor;
 
 /**
  * Represents a connection to the server.
@@ -13,8 +17,34 @@ public class Connection {
 	public StringServer server;
 	public int id;
 	
-	private boolean isConnected;
+	private volatile boolean isConnected;
 	private Listener listener;
+	private CallbackQueue callbacks;
+	// Loop servicing this connection, set once it is registered.
+	EventLoop eventLoop;
+	// Client that opened this connection, null for connections accepted by a server.
+	StringClient client;
+	// Broadcast groups this connection has joined, created on the first join.
+	volatile Set<String> groups;
+	// Set while the server counts this connection against its limits, guarded by the connection.
+	boolean admitted;
+	// Remote address counted against the per-address limit, or null.
+	InetAddress admittedAddress;
+	private long readIdleTimeout = 0;
+	private long writeIdleTimeout = 0;
+	private String keepAlive;
+	private final Runnable idleCheck = new Runnable() {
+		@Override
+		public void run() {
+			checkIdle();
+		}
+	};
+	private final Runnable closeTask = new Runnable() {
+		@Override
+		public void run() {
+			close();
+		}
+	};
 	
 	/**
 	 * Creates a new connection with the given listener.
@@ -28,7 +58,7 @@ public class Connection {
 	/**
 	 * Sends the string over the network.
 	 * @param string String to send.
-	 * @return Number of bytes sent.
+	 * @return Number of bytes sent or queued for sending.
 	 */
 	public int send(String string) {
 		if(string == null || string.equals("")) throw new IllegalArgumentException("String cannot be null.");
@@ -38,11 +68,85 @@ public class Connection {
 			return length;
 		} catch(IOException e) {
 			StringServer.printDbg(this + " unable to send: " + e.getMessage());
-			close();
+			closeAfterSend();
+			return 0;
+		}
+	}
+	
+	/**
+	 * Sends a batch of strings over the network with a single gathering write, which is much cheaper
+	 * than calling send(String) for each of them.
+	 * @param strings Strings to send, in order.
+	 * @return Number of bytes sent or queued for sending.
+	 */
+	public int send(Collection<String> strings) {
+		if(strings == null) throw new IllegalArgumentException("Strings cannot be null.");
+		for(String string : strings) {
+			if(string == null || string.equals("")) throw new IllegalArgumentException("String cannot be null.");
+		}
+		try {
+			int length = tcp.send(this, strings);
+			StringServer.printDbg(this + " sent " + strings.size() + " strings, " + length + " bytes.");
+			return length;
+		} catch(IOException e) {
+			StringServer.printDbg(this + " unable to send: " + e.getMessage());
+			closeAfterSend();
+			return 0;
+		}
+	}
+	
+	/**
+	 * Sends a broadcast string that has already been encoded and framed the way this connection expects.
+	 * The frame itself is left untouched, so it can be shared between connections.
+	 * @param frame Shared frame.
+	 * @return Number of bytes sent or queued for sending.
+	 */
+	int sendEncoded(SharedFrame frame) {
+		try {
+			int length = tcp.send(this, frame);
+			StringServer.printDbg(this + " sent " + length + " bytes.");
+			return length;
+		} catch(IOException e) {
+			StringServer.printDbg(this + " unable to send: " + e.getMessage());
+			closeAfterSend();
 			return 0;
 		}
 	}
 	
+	/**
+	 * Returns the number of bytes waiting to be written to this connection.
+	 * @return Queued bytes.
+	 */
+	public long getQueuedBytes() {
+		return tcp.getQueuedBytes();
+	}
+	
+	/**
+	 * Returns false while this connection has more queued than its high watermark allows,
+	 * until the queue drains to its low watermark.
+	 * @return True if writable.
+	 */
+	public boolean isWritable() {
+		return tcp.isWritable();
+	}
+	
+	/**
+	 * Sets the outbound watermarks for this connection.
+	 * @param lowWatermark Queued bytes at which the connection is writable again.
+	 * @param highWatermark Queued bytes past which the slow consumer policy applies.
+	 */
+	public void setWriteWatermarks(int lowWatermark, int highWatermark) {
+		tcp.setWriteWatermarks(lowWatermark, highWatermark);
+	}
+	
+	/**
+	 * Sets what happens to strings sent to this connection while it is not writable.
+	 * @param slowConsumerPolicy Policy to apply.
+	 */
+	public void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+		tcp.setSlowConsumerPolicy(slowConsumerPolicy);
+	}
+	
 	/**
      * Returns true if this connection is connected to the remote end.
      * Note that a connection can become disconnected at any time.
@@ -67,7 +171,7 @@ public class Connection {
     public InetSocketAddress getRemoteAddress() {
     	SocketChannel socketChannel = tcp.socketChannel;
     	if(socketChannel != null) {
-    		Socket socket = tcp.socketChannel.socket();
+    		Socket socket = socketChannel.socket();
     		if(socket != null) {
     			return (InetSocketAddress) socket.getRemoteSocketAddress();
     		}
@@ -79,29 +183,201 @@ public class Connection {
 	 * Closes the connection.
 	 */
 	public void close() {
+		// The loop, a callback executor and the application may all close at once, only the first goes on.
+		if(!tcp.claimClose()) return;
 		boolean wasConnected = isConnected;
 		isConnected = false;
 		tcp.close();
+		if(server != null) server.removeConnection(this);
 		if(wasConnected) {
-			listener.disconnected(this);
+			if(server != null) server.getMetrics().closes.increment();
+			notifyDisconnected();
 			StringServer.print(this + " disconnected.");
 		}
 		setConnected(false);
+		if(client != null) client.closeOperation(this);
+	}
+	
+	/**
+	 * Closes the connection after a failed send, such as one the disconnect slow consumer policy
+	 * turned away. A send from another thread, like a broadcast, hands the close to the connection's
+	 * event loop, so disconnected() and the server's cleanup run there rather than on the sender.
+	 */
+	private void closeAfterSend() {
+		EventLoop eventLoop = this.eventLoop;
+		if(eventLoop == null || eventLoop.inEventLoop()) {
+			close();
+			return;
+		}
+		eventLoop.execute(closeTask);
+	}
+	
+	/**
+	 * Runs this connection's listener callbacks on an executor instead of the calling thread.
+	 * Callbacks for this connection still run one at a time and in order.
+	 * @param executor Executor to run callbacks on.
+	 * @param maxPending Number of waiting callbacks at which reading from the connection is suspended.
+	 */
+	void setCallbackExecutor(Executor executor, int maxPending) {
+		callbacks = new CallbackQueue(this, executor, maxPending);
+	}
+	
+	/**
+	 * Sets how long this connection may go without reading or writing. Must be called before it is registered.
+	 * @param readIdleTimeout Milliseconds without receiving anything before the connection is closed, or 0 for no limit.
+	 * @param writeIdleTimeout Milliseconds without writing anything before the keepalive line is sent,
+	 * 		or the connection closed if there is none. 0 for no limit.
+	 * @param keepAlive Keepalive line including its newline, or null.
+	 */
+	void setIdleTimeouts(long readIdleTimeout, long writeIdleTimeout, String keepAlive) {
+		this.readIdleTimeout = readIdleTimeout * 1000000L;
+		this.writeIdleTimeout = writeIdleTimeout * 1000000L;
+		this.keepAlive = keepAlive;
+	}
+	
+	/**
+	 * Starts watching for idle timeouts on the event loop the connection was registered with.
+	 */
+	void startIdleChecks() {
+		if(readIdleTimeout > 0 || writeIdleTimeout > 0) checkIdle();
+	}
+	
+	/**
+	 * Handles any idle timeout that has passed, then checks again when the next one could.
+	 * Reads and writes only record a timestamp, so a busy connection costs one check per timeout period.
+	 */
+	private void checkIdle() {
+		if(!isConnected) return;
+		long now = System.nanoTime();
+		long next = Long.MAX_VALUE;
+		
+		if(readIdleTimeout > 0) {
+			// Nothing is read while reading is held back, however much the remote end is sending.
+			long idle = tcp.isReadPaused() ? 0 : now - tcp.getLastReadTime();
+			if(idle >= readIdleTimeout) {
+				StringServer.printDbg(this + " read idle.");
+				notifyIdle(IdleType.READ);
+				close();
+				return;
+			}
+			next = readIdleTimeout - idle;
+		}
+		
+		if(writeIdleTimeout > 0) {
+			long idle = now - tcp.getLastWriteTime();
+			if(idle >= writeIdleTimeout) {
+				StringServer.printDbg(this + " write idle.");
+				notifyIdle(IdleType.WRITE);
+				if(keepAlive == null) {
+					close();
+					return;
+				}
+				send(keepAlive);
+				if(!isConnected) return;
+				idle = 0;
+			}
+			next = Math.min(next, writeIdleTimeout - idle);
+		}
+		
+		eventLoop.schedule(idleCheck, next);
 	}
 	
 	/**
 	 * Notify the listener of the received string.
 	 * @param string String to pass along.
 	 */
-	public void notifyReceived(String string) {
-		listener.received(this, string);
+	public void notifyReceived(final String string) {
+		dispatch(new Runnable() {
+			@Override
+			public void run() {
+				listener.received(Connection.this, string);
+			}
+		});
 	}
 	
 	/**
 	 * Notify the listener of the connection.
 	 */
 	public void notifyConnected() {
-		listener.connected(this);
+		dispatch(new Runnable() {
+			@Override
+			public void run() {
+				listener.connected(Connection.this);
+			}
+		});
+	}
+	
+	/**
+	 * Notify the listener that the connection stopped or started accepting more strings.
+	 * @param writable True if the queue drained to the low watermark, false if it passed the high watermark.
+	 */
+	void notifyWritabilityChanged(final boolean writable) {
+		dispatch(new Runnable() {
+			@Override
+			public void run() {
+				listener.writabilityChanged(Connection.this, writable);
+			}
+		});
+	}
+	
+	/**
+	 * Notify the listener that the connection has been idle for too long.
+	 * @param type Whether reading or writing went idle.
+	 */
+	private void notifyIdle(final IdleType type) {
+		dispatch(new Runnable() {
+			@Override
+			public void run() {
+				listener.idle(Connection.this, type);
+			}
+		});
+	}
+	
+	/**
+	 * Notify the listener that the remote end keeps sending faster than its inbound rate limit.
+	 */
+	void notifyRateLimited() {
+		dispatch(new Runnable() {
+			@Override
+			public void run() {
+				listener.rateLimited(Connection.this);
+			}
+		});
+	}
+	
+	/**
+	 * Notify the listener of the disconnection.
+	 */
+	private void notifyDisconnected() {
+		dispatch(new Runnable() {
+			@Override
+			public void run() {
+				listener.disconnected(Connection.this);
+			}
+		});
+	}
+	
+	/**
+	 * Runs a listener callback on this thread, or hands it to the callback executor if one is set.
+	 * A callback that throws is reported either way, and does not take the calling thread down.
+	 * @param callback Callback to run.
+	 */
+	private void dispatch(Runnable callback) {
+		if(callbacks != null) {
+			callbacks.submit(callback);
+			return;
+		}
+		long start = System.nanoTime();
+		try {
+			callback.run();
+		} catch(RuntimeException e) {
+			StringServer.printErr(this + " listener threw: " + e);
+		}
+		recordCallbackTime(start);
+	}
+	
+	void recordCallbackTime(long start) {
+		if(server != null) server.getMetrics().callbackTime.record(System.nanoTime() - start);
 	}
 	
 	public String toString() {
@@ -0,0 +1,194 @@
+package org.peak15.stringserver;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The server's connections, keyed by connection ID.
+ * Lookups go through an open addressing map of primitive ints, so finding a connection by ID
+ * is constant time and never boxes. Broadcasts iterate an array snapshot that can be read from any
+ * thread without locking. The snapshot is only rebuilt when it is asked for after a change, so
+ * adding or removing many connections in a row, as accepting a crowd or closing the server does,
+ * costs constant time per change rather than a copy of the whole registry.
+ */
+public class ConnectionRegistry {
+	private static final Connection[] EMPTY = new Connection[0];
+
+	// ID 0 is never handed out, so it marks an empty slot.
+	private int[] keys = new int[16];
+	private Connection[] values = new Connection[16];
+	private volatile int size = 0;
+
+	// Null once a change has made it stale, see snapshot().
+	private volatile Connection[] snapshot = EMPTY;
+
+	/**
+	 * Adds a connection, replacing any connection with the same ID.
+	 * @param connection Connection to add.
+	 */
+	public synchronized void add(Connection connection) {
+		if(connection.id == 0) throw new IllegalArgumentException("Connection has no ID.");
+		if((size + 1) * 2 > keys.length) resize(keys.length * 2);
+
+		int slot = find(keys, connection.id);
+		if(keys[slot] == 0) {
+			keys[slot] = connection.id;
+			size++;
+		}
+		values[slot] = connection;
+		snapshot = null;
+	}
+
+	/**
+	 * Removes a connection if it is registered.
+	 * @param connection Connection to remove.
+	 * @return True if the connection was removed.
+	 */
+	public synchronized boolean remove(Connection connection) {
+		int slot = find(keys, connection.id);
+		if(keys[slot] == 0 || values[slot] != connection) return false;
+
+		// Shift later entries of the probe sequence back so lookups never hit a gap.
+		int mask = keys.length - 1;
+		int next = (slot + 1) & mask;
+		while(keys[next] != 0) {
+			int home = hash(keys[next]) & mask;
+			if(((next - home) & mask) >= ((next - slot) & mask)) {
+				keys[slot] = keys[next];
+				values[slot] = values[next];
+				slot = next;
+			}
+			next = (next + 1) & mask;
+		}
+		keys[slot] = 0;
+		values[slot] = null;
+		size--;
+		// Shrink once mostly empty, so snapshots of a drained registry do not scan a huge table.
+		if(keys.length > 16 && size * 8 < keys.length) resize(keys.length / 2);
+
+		snapshot = null;
+		return true;
+	}
+
+	/**
+	 * Returns the connection with the given ID.
+	 * @param id Connection ID.
+	 * @return The connection, or null if there is none with that ID.
+	 */
+	public synchronized Connection get(int id) {
+		if(id == 0) return null;
+		return values[find(keys, id)];
+	}
+
+	/**
+	 * Removes every connection.
+	 */
+	public synchronized void clear() {
+		Arrays.fill(keys, 0);
+		Arrays.fill(values, null);
+		size = 0;
+		snapshot = EMPTY;
+	}
+
+	/**
+	 * Returns the number of connections.
+	 * @return Number of connections.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the current connections. The array is never modified after it is returned.
+	 * @return Array of connections, must not be modified.
+	 */
+	public Connection[] snapshot() {
+		Connection[] connections = snapshot;
+		if(connections != null) return connections;
+		synchronized(this) {
+			if(snapshot == null) snapshot = buildSnapshot();
+			return snapshot;
+		}
+	}
+
+	/**
+	 * Returns an unmodifiable set of the current connections, unaffected by later changes.
+	 * @return Set of connections.
+	 */
+	public Set<Connection> asSet() {
+		final Connection[] connections = snapshot();
+		return new AbstractSet<Connection>() {
+			@Override
+			public Iterator<Connection> iterator() {
+				return new Iterator<Connection>() {
+					private int index = 0;
+
+					@Override
+					public boolean hasNext() {
+						return index < connections.length;
+					}
+
+					@Override
+					public Connection next() {
+						if(index >= connections.length) throw new NoSuchElementException();
+						return connections[index++];
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return connections.length;
+			}
+		};
+	}
+
+	private void resize(int capacity) {
+		int[] oldKeys = keys;
+		Connection[] oldValues = values;
+		keys = new int[capacity];
+		values = new Connection[capacity];
+		for(int i = 0; i < oldKeys.length; i++) {
+			if(oldKeys[i] != 0) {
+				int slot = find(keys, oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	private Connection[] buildSnapshot() {
+		Connection[] connections = new Connection[size];
+		int index = 0;
+		for(Connection connection : values) {
+			if(connection != null) connections[index++] = connection;
+		}
+		return connections;
+	}
+
+	/**
+	 * Returns the slot holding the ID, or the empty slot where it would go.
+	 */
+	private static int find(int[] keys, int id) {
+		int mask = keys.length - 1;
+		int slot = hash(id) & mask;
+		while(keys[slot] != 0 && keys[slot] != id) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private static int hash(int id) {
+		// IDs are sequential, spread them so neighbours do not cluster.
+		int h = id * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,212 @@
+package org.peak15.stringserver;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The compressed streams of one connection, raw deflate in both directions.
+ * Every string is deflated with a sync flush, so it reaches the remote end as soon as it is written
+ * and the bytes on the wire always end on a block boundary. That lets a broadcast compressed once by
+ * a fresh deflater be spliced into any connection's stream, as long as the connection's own deflater
+ * is reset afterwards, since its history no longer matches what the remote end has seen.
+ *
+ * The deflating side is guarded by the connection's write lock, the inflating side is only used by
+ * the thread reading the connection and has a lock of its own, so end() can free the inflater while
+ * another thread may be reading.
+ */
+class DeflateStream {
+	private static final byte[] EMPTY = new byte[0];
+	// Deflate buffers grown past this for a long string are dropped after it, so one long string does
+	// not hold on to memory for as long as the connection lasts.
+	private static final int MAX_KEPT_BUFFER = 64 * 1024;
+
+	private final DeflaterPool pool;
+	private final int level;
+
+	private Deflater deflater;
+	private boolean deflating = false;
+	private boolean resetNeeded = false;
+	private boolean ended = false;
+	private byte[] deflateInput = EMPTY;
+	private byte[] deflateOutput = EMPTY;
+
+	private final Object inflateLock = new Object();
+	private Inflater inflater;
+	private boolean inflaterEnded = false;
+	private byte[] inflateInput = EMPTY;
+	private byte[] inflateOutput = EMPTY;
+
+	/**
+	 * Creates the streams of a connection that may be compressed. Nothing is allocated until the
+	 * handshake turns compression on.
+	 * @param pool Pool to borrow the deflater from.
+	 * @param level Compression level from 1 to 9.
+	 */
+	DeflateStream(DeflaterPool pool, int level) {
+		this.pool = pool;
+		this.level = level;
+	}
+
+	/**
+	 * Compresses everything sent from now on.
+	 */
+	void startDeflating() {
+		deflating = true;
+	}
+
+	boolean isDeflating() {
+		return deflating;
+	}
+
+	/**
+	 * Decompresses everything received from now on.
+	 */
+	void startInflating() {
+		synchronized(inflateLock) {
+			if(inflaterEnded) return;
+			inflater = new Inflater(true);
+			inflateOutput = new byte[8192];
+		}
+	}
+
+	boolean isInflating() {
+		synchronized(inflateLock) {
+			return inflater != null;
+		}
+	}
+
+	/**
+	 * Compresses bytes with the connection's deflater.
+	 * @param plain Framed bytes, consumed.
+	 * @return Buffer of its own holding the compressed bytes.
+	 * @throws SocketException If the connection has been closed.
+	 */
+	ByteBuffer deflate(ByteBuffer plain) throws SocketException {
+		if(ended) throw new SocketException("Connection is closed.");
+		if(deflater == null) {
+			deflater = pool.acquire(level);
+		}
+		else if(resetNeeded) {
+			deflater.reset();
+		}
+		resetNeeded = false;
+
+		int length = plain.remaining();
+		if(deflateInput.length < length) deflateInput = new byte[length];
+		plain.get(deflateInput, 0, length);
+		if(deflateOutput.length < maxDeflatedLength(length)) deflateOutput = new byte[maxDeflatedLength(length)];
+		deflater.setInput(deflateInput, 0, length);
+		ByteBuffer deflated = flush(deflater, deflateOutput);
+		if(deflateInput.length > MAX_KEPT_BUFFER) deflateInput = EMPTY;
+		if(deflateOutput.length > MAX_KEPT_BUFFER) deflateOutput = EMPTY;
+		return deflated;
+	}
+
+	/**
+	 * Compresses bytes shared by many connections with a deflater of their own.
+	 * @param plain Framed bytes, left untouched.
+	 * @param pool Pool to borrow the deflater from.
+	 * @param level Compression level from 1 to 9.
+	 * @return Read-only buffer holding the compressed bytes.
+	 */
+	static ByteBuffer deflateShared(ByteBuffer plain, DeflaterPool pool, int level) {
+		byte[] input = new byte[plain.remaining()];
+		plain.duplicate().get(input);
+		Deflater deflater = pool.acquire(level);
+		try {
+			deflater.setInput(input);
+			return flush(deflater, new byte[maxDeflatedLength(input.length)]).asReadOnlyBuffer();
+		} finally {
+			pool.release(deflater, level);
+		}
+	}
+
+	/**
+	 * Notes that bytes deflate() returned, or a shared frame, did or will not follow the connection's
+	 * own output on the wire, so its deflater must start over before the next string.
+	 */
+	void discardHistory() {
+		resetNeeded = true;
+	}
+
+	/**
+	 * Feeds received compressed bytes to the inflater.
+	 * @param compressed Bytes read from the connection, consumed.
+	 * @throws SocketException If the connection has been closed.
+	 */
+	void setInflaterInput(ByteBuffer compressed) throws SocketException {
+		synchronized(inflateLock) {
+			if(inflaterEnded) throw new SocketException("Connection is closed.");
+			int length = compressed.remaining();
+			if(inflateInput.length < length) inflateInput = new byte[length];
+			compressed.get(inflateInput, 0, length);
+			inflater.setInput(inflateInput, 0, length);
+		}
+	}
+
+	/**
+	 * Returns the next decompressed bytes. The buffer is reused by the next call.
+	 * @return Decompressed bytes, or null once all of the input has been used.
+	 * @throws IOException If the compressed stream is malformed or has ended.
+	 */
+	ByteBuffer inflate() throws IOException {
+		synchronized(inflateLock) {
+			if(inflaterEnded) throw new SocketException("Connection is closed.");
+			try {
+				int length = inflater.inflate(inflateOutput);
+				if(length > 0) return ByteBuffer.wrap(inflateOutput, 0, length);
+				if(inflater.finished() || inflater.needsDictionary()) throw new IOException("Compressed stream ended.");
+				return null;
+			} catch(DataFormatException e) {
+				throw new IOException("Malformed compressed stream: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Gives the deflater back to the pool and frees the inflater's native memory. Called with the write
+	 * lock held when the connection closes.
+	 */
+	void end() {
+		ended = true;
+		deflateInput = EMPTY;
+		deflateOutput = EMPTY;
+		if(deflater != null) {
+			pool.release(deflater, level);
+			deflater = null;
+		}
+		// Waits for the reading thread to finish with the inflater, which fails from then on.
+		synchronized(inflateLock) {
+			inflaterEnded = true;
+			if(inflater != null) inflater.end();
+			inflateInput = EMPTY;
+		}
+	}
+
+	/**
+	 * Runs a sync flush and copies out everything the deflater produced.
+	 */
+	private static ByteBuffer flush(Deflater deflater, byte[] output) {
+		int count = 0;
+		while(true) {
+			count += deflater.deflate(output, count, output.length - count, Deflater.SYNC_FLUSH);
+			// A full output buffer may mean there is more to come.
+			if(count < output.length) break;
+			output = Arrays.copyOf(output, output.length * 2);
+		}
+		return ByteBuffer.wrap(Arrays.copyOf(output, count));
+	}
+
+	/**
+	 * Returns how many bytes deflating and flushing a string could take: stored blocks cost 5 bytes
+	 * per 16 KiB, and the flush adds an empty block.
+	 */
+	private static int maxDeflatedLength(int length) {
+		return length + 5 * (length / 16383 + 1) + 16;
+	}
+}
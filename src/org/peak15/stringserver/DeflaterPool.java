@@ -0,0 +1,90 @@
+package org.peak15.stringserver;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * A shared pool of raw deflaters, one pool per compression level.
+ * Each deflater holds a few hundred kilobytes of native memory that the garbage collector knows
+ * nothing about, so compressed connections return theirs when they close and broadcasts borrow one
+ * only for as long as it takes to compress a single string.
+ */
+public class DeflaterPool {
+	/**
+	 * Default number of free deflaters kept for each level.
+	 */
+	public static final int DEFAULT_MAX_POOLED = 64;
+
+	/**
+	 * Pool used by servers and clients.
+	 */
+	public static final DeflaterPool DEFAULT = new DeflaterPool(DEFAULT_MAX_POOLED);
+
+	private final int maxPooled;
+	private final Level[] levels = new Level[Deflater.BEST_COMPRESSION + 1];
+
+	/**
+	 * The free deflaters of one compression level.
+	 */
+	private static class Level {
+		final Queue<Deflater> free = new ConcurrentLinkedQueue<Deflater>();
+		final AtomicInteger freeCount = new AtomicInteger();
+	}
+
+	/**
+	 * Creates a deflater pool.
+	 * @param maxPooled Most free deflaters to keep for each level, deflaters released beyond this are ended.
+	 */
+	public DeflaterPool(int maxPooled) {
+		if(maxPooled < 0) throw new IllegalArgumentException("Pool size cannot be negative.");
+		this.maxPooled = maxPooled;
+		for(int i = 0; i < levels.length; i++) levels[i] = new Level();
+	}
+
+	/**
+	 * Borrows a raw deflater, which writes no zlib header or checksum, creating one if none is free.
+	 * @param level Compression level from 0 to 9.
+	 * @return A deflater in its initial state, which must be given back with release().
+	 */
+	public Deflater acquire(int level) {
+		Deflater deflater = levelOf(level).free.poll();
+		if(deflater == null) return new Deflater(level, true);
+		levels[level].freeCount.decrementAndGet();
+		return deflater;
+	}
+
+	/**
+	 * Resets a deflater and gives it back to the pool. The deflater must not be used afterwards.
+	 * @param deflater Deflater obtained from acquire().
+	 * @param level Level it was acquired with.
+	 */
+	public void release(Deflater deflater, int level) {
+		Level pooled = levelOf(level);
+		if(pooled.freeCount.incrementAndGet() <= maxPooled) {
+			deflater.reset();
+			pooled.free.add(deflater);
+		}
+		else {
+			pooled.freeCount.decrementAndGet();
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Returns the number of free deflaters in the pool, across all levels.
+	 * @return Number of free deflaters.
+	 */
+	public int getFreeCount() {
+		int count = 0;
+		for(Level level : levels) count += level.freeCount.get();
+		return count;
+	}
+
+	private Level levelOf(int level) {
+		if(level < 0 || level >= levels.length)
+			throw new IllegalArgumentException("Compression level must be from 0 to 9.");
+		return levels[level];
+	}
+}
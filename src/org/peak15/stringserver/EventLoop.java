@@ -0,0 +1,380 @@
+package org.peak15.stringserver;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A selector and the loop that services it.
+ * Every server has one event loop that accepts new connections. When the server is created with
+ * worker threads, each worker runs its own event loop and accepted connections are spread across them.
+ * A client has a single event loop for all of its connections.
+ *
+ * Other threads hand work to a loop with execute() and schedule(). Tasks go on a lock-free queue
+ * that the loop drains once per iteration, and the selector is woken up at most once per iteration
+ * however many tasks arrive, so a burst of sends from another thread costs a single wakeup.
+ *
+ * Each connection is read for no more than its read budget per iteration. A connection that uses up
+ * its budget is read again on the next iteration, after the connections the selector reports, and
+ * the loop does not wait in select() while any are queued.
+ */
+public class EventLoop implements Runnable {
+	// Idle timeouts are checked to within a tick, one turn of the wheel covers about 51 seconds.
+	private static final long TICK_MILLIS = 100;
+	private static final int WHEEL_SLOTS = 512;
+	// Tasks run per iteration before the selector gets another look.
+	private static final int MAX_TASKS_PER_UPDATE = 1024;
+	// Connections accepted from one listening socket per iteration.
+	private static final int MAX_ACCEPTS_PER_UPDATE = 64;
+	
+	// Exactly one of these is set.
+	private final StringServer server;
+	private final StringClient client;
+	private final StringServerMetrics metrics;
+	private final Selector selector;
+	private final TimingWheel timingWheel = new TimingWheel(TICK_MILLIS, WHEEL_SLOTS);
+	private final Queue<Registration> registrations = new ConcurrentLinkedQueue<Registration>();
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	// Connections that used up their read budget, only touched by the loop's thread.
+	private final ArrayDeque<Connection> pendingReads = new ArrayDeque<Connection>();
+	// Set once a wakeup is on its way, cleared just before the loop selects again.
+	private final AtomicBoolean wakeupPending = new AtomicBoolean();
+	private volatile Thread thread;
+	private volatile boolean running = false;
+
+	/**
+	 * A connection waiting to be registered with this loop's selector.
+	 */
+	private static class Registration {
+		final Connection connection;
+		final SocketChannel socketChannel;
+
+		Registration(Connection connection, SocketChannel socketChannel) {
+			this.connection = connection;
+			this.socketChannel = socketChannel;
+		}
+	}
+
+	/**
+	 * Creates a new event loop.
+	 * @param server Server the loop belongs to.
+	 */
+	public EventLoop(StringServer server) {
+		this(server, null, server.getMetrics());
+	}
+
+	/**
+	 * Creates a new event loop for a client's connections.
+	 * @param client Client the loop belongs to.
+	 */
+	public EventLoop(StringClient client) {
+		this(null, client, client.getMetrics());
+	}
+
+	private EventLoop(StringServer server, StringClient client, StringServerMetrics metrics) {
+		this.server = server;
+		this.client = client;
+		this.metrics = metrics;
+
+		try {
+			this.selector = Selector.open();
+		} catch(IOException e) {
+			throw new RuntimeException("Error opening selector.", e);
+		}
+	}
+
+	/**
+	 * Returns the selector serviced by this loop.
+	 * @return The selector.
+	 */
+	public Selector getSelector() {
+		return selector;
+	}
+
+	/**
+	 * Hands a newly accepted or connecting connection to this loop. The channel is registered with
+	 * the selector on the loop's own thread, so this may be called from any thread.
+	 * @param connection Connection to register.
+	 * @param socketChannel Socket channel of the connection.
+	 */
+	public void register(Connection connection, SocketChannel socketChannel) {
+		registrations.add(new Registration(connection, socketChannel));
+		wakeup();
+	}
+
+	/**
+	 * Returns true if called from the thread currently running this loop.
+	 * @return True on the loop's thread.
+	 */
+	public boolean inEventLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Runs a task on this loop's thread, after the ready connections of the current iteration.
+	 * May be called from any thread. Tasks run in the order they were submitted.
+	 * @param task Task to run.
+	 */
+	public void execute(Runnable task) {
+		tasks.add(task);
+		if(!inEventLoop()) wakeup();
+	}
+
+	/**
+	 * Runs a task on this loop's thread after a delay. May be called from any thread.
+	 * @param task Task to run.
+	 * @param delayNanos Delay in nanoseconds, rounded up to the next tick of the timing wheel.
+	 */
+	public void schedule(final Runnable task, long delayNanos) {
+		if(inEventLoop()) {
+			timingWheel.schedule(task, delayNanos);
+			return;
+		}
+		final long deadline = System.nanoTime() + delayNanos;
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				timingWheel.schedule(task, deadline - System.nanoTime());
+			}
+		});
+	}
+
+	/**
+	 * Schedules a reusable timeout, without allocating anything. Must be called on this loop's thread.
+	 * @param timeout Timeout to schedule.
+	 * @param delayNanos Delay in nanoseconds, rounded up to the next tick of the timing wheel.
+	 * @return False if the timeout was already scheduled, which leaves it as it was.
+	 */
+	boolean schedule(TimingWheel.Timeout timeout, long delayNanos) {
+		return timingWheel.schedule(timeout, delayNanos);
+	}
+
+	/**
+	 * Wakes the selector up, unless a wakeup is already on its way.
+	 */
+	private void wakeup() {
+		if(wakeupPending.compareAndSet(false, true)) selector.wakeup();
+	}
+	
+	/**
+	 * Registers pending connections, then accepts, reads or writes whatever is ready.
+	 * @param timeout Wait for up to the specified milliseconds for a connection to be ready to
+	 * 		process. May be zero to return immediately if there are no connections to process.
+	 */
+	public void update(int timeout) throws IOException {
+		thread = Thread.currentThread();
+		// Anything submitted from here on has to wake the selector again.
+		wakeupPending.set(false);
+
+		Registration registration;
+		while((registration = registrations.poll()) != null) {
+			if(server != null) {
+				server.registerOperation(registration.connection, registration.socketChannel, this);
+			}
+			else {
+				client.registerOperation(registration.connection, this);
+			}
+		}
+
+		if(!tasks.isEmpty() || !pendingReads.isEmpty()) timeout = 0;
+		if(timingWheel.size() > 0) {
+			// Wake up in time for the next tick.
+			long untilTick = (timingWheel.nanosUntilNextTick(System.nanoTime()) + 999999) / 1000000;
+			timeout = (int) Math.min(timeout, Math.max(1, untilTick));
+		}
+		if(timeout > 0) {
+			selector.select(timeout);
+		}
+		else {
+			selector.selectNow();
+		}
+		metrics.selectWakeups.increment();
+		long start = System.nanoTime();
+		// Only the connections queued before this iteration get another pass in it.
+		int pendingCount = pendingReads.size();
+
+		Set<SelectionKey> keys = selector.selectedKeys();
+		synchronized (keys) {
+			Iterator<SelectionKey> iter = keys.iterator();
+
+			while(iter.hasNext()) {
+				SelectionKey selectionKey = iter.next();
+				iter.remove();
+				try {
+					int ops = selectionKey.readyOps();
+					Connection fromConnection = (Connection) selectionKey.attachment();
+
+					if(fromConnection != null) {
+						if((ops & SelectionKey.OP_CONNECT) == SelectionKey.OP_CONNECT) {
+							try {
+								if(fromConnection.tcp.finishConnect()) client.connectOperation(fromConnection);
+							} catch(IOException e) {
+								StringServer.printDbg(fromConnection + " unable to connect: " + e.getMessage());
+								fromConnection.close();
+							}
+							continue;
+						}
+						// Must be a read or write operation.
+						// A connection queued for another pass is read with the others below.
+						if((ops & SelectionKey.OP_READ) == SelectionKey.OP_READ && !fromConnection.tcp.readRescheduled) {
+							readOperation(fromConnection);
+						}
+						if((ops & SelectionKey.OP_WRITE) == SelectionKey.OP_WRITE) {
+							try {
+								// Flush whatever send() could not write right away.
+								fromConnection.tcp.writeOperation(fromConnection);
+							} catch(IOException e) {
+								StringServer.printDbg(fromConnection + " unable to write: " + e.getMessage());
+								fromConnection.close();
+							}
+						}
+						continue;
+					}
+
+					if((ops & SelectionKey.OP_ACCEPT) == SelectionKey.OP_ACCEPT) {
+						ServerSocketChannel serverChannel = (ServerSocketChannel) selectionKey.channel();
+						try {
+							// Drain the backlog a batch at a time, a reconnect storm would otherwise
+							// cost a select for every connection.
+							for(int i = 0; i < MAX_ACCEPTS_PER_UPDATE; i++) {
+								SocketChannel socketChannel = serverChannel.accept();
+								if(socketChannel == null) break;
+								server.acceptOperation(socketChannel, this);
+							}
+						} catch(IOException e) {
+							StringServer.printDbg("Unable to accept new connection: " + e.getMessage());
+						}
+						continue;
+					}
+				} catch (CancelledKeyException ignored) {
+					// Connection is closed.
+				} catch(RuntimeException e) {
+					// One broken connection must not take the others on this loop down with it.
+					Object attachment = selectionKey.attachment();
+					StringServer.printErr("Error handling " + attachment + ": " + e);
+					if(attachment instanceof Connection) ((Connection) attachment).close();
+				}
+			}
+		}
+		for(int i = 0; i < pendingCount; i++) {
+			Connection connection = pendingReads.poll();
+			connection.tcp.readRescheduled = false;
+			if(connection.isConnected()) readOperation(connection);
+		}
+		runTasks();
+		timingWheel.advance(System.nanoTime());
+		metrics.updateTime.record(System.nanoTime() - start);
+	}
+
+	/**
+	 * Delivers the strings immediately available, up to the connection's read budget. A connection
+	 * that still may have input is queued to be read again on the next iteration.
+	 */
+	private void readOperation(Connection connection) {
+		TcpConnection tcp = connection.tcp;
+		tcp.resetReadBudget();
+		try {
+			while(true) {
+				if(tcp.isReadBudgetSpent()) {
+					if(tcp.mayHaveInput()) {
+						tcp.readRescheduled = true;
+						pendingReads.add(connection);
+					}
+					return;
+				}
+				String string = tcp.readString(connection);
+				if(string == null) return;
+				StringServer.printDbg(connection + " received string.");
+				connection.notifyReceived(string);
+			}
+		} catch(IOException e) {
+			StringServer.printDbg(connection + " warning: " + e.getMessage());
+			connection.close();
+		} catch(RuntimeException e) {
+			StringServer.printErr(connection + " read failed: " + e);
+			connection.close();
+		}
+	}
+
+	/**
+	 * Runs the tasks submitted with execute(), but no more than a batch so the selector is not starved.
+	 */
+	private void runTasks() {
+		for(int i = 0; i < MAX_TASKS_PER_UPDATE; i++) {
+			Runnable task = tasks.poll();
+			if(task == null) return;
+			try {
+				task.run();
+			} catch(RuntimeException e) {
+				StringServer.printErr("Task threw: " + e);
+			}
+		}
+	}
+
+	/**
+	 * Continually updates this loop until stop() is called.
+	 */
+	@Override
+	public void run() {
+		while(running) {
+			try {
+				update(500);
+			} catch(IOException e) {
+				StringServer.printErr("Error updating connections: " + e.getMessage());
+				if(server != null) server.close();
+				else client.close();
+			} catch(RuntimeException e) {
+				StringServer.printErr("Error updating connections: " + e);
+			}
+		}
+		closeSelector();
+	}
+
+	/**
+	 * Closes the selector, releasing its file descriptors. Called by the thread running the loop once
+	 * it has stopped, the loop cannot be started again afterwards.
+	 */
+	void closeSelector() {
+		try {
+			selector.close();
+		} catch(IOException e) {
+			StringServer.printDbg("Unable to close selector: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Starts a new thread that calls run().
+	 * @param name Name of the thread.
+	 */
+	public void start(String name) {
+		running = true;
+		new Thread(this, name).start();
+	}
+
+	/**
+	 * Causes run() to return, and closes any connections that were never registered, which stop
+	 * counting against the server's limits. Tasks that have not run yet are dropped.
+	 */
+	public void stop() {
+		running = false;
+		selector.wakeup();
+		tasks.clear();
+
+		Registration registration;
+		while((registration = registrations.poll()) != null) {
+			try {
+				registration.socketChannel.close();
+			} catch(IOException ignored) {}
+			if(server != null) server.release(registration.connection);
+		}
+	}
+}
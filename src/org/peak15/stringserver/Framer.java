@@ -0,0 +1,107 @@
+package org.peak15.stringserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Splits incoming bytes into strings and wraps outgoing strings so the remote end can do the same.
+ * Each connection has its own framer, since a frame may span several reads, and the server creates
+ * them with the Factory it was given.
+ *
+ * NEWLINE, the default, is meant for people at a telnet prompt: strings end at '\n' and are trimmed,
+ * and outgoing strings are sent exactly as given, so they should end with '\n' themselves.
+ * LENGTH_PREFIXED and VARINT_PREFIXED are meant for programs: every string is preceded by its length
+ * in bytes, so strings may contain newlines and the reader never scans the payload.
+ */
+public interface Framer {
+	/**
+	 * Creates a framer for each new connection.
+	 */
+	public interface Factory {
+		/**
+		 * Creates a framer.
+		 * @return A new framer.
+		 */
+		public Framer newFramer();
+	}
+
+	/**
+	 * Newline terminated strings, see LineFramer.
+	 */
+	public static final Factory NEWLINE = new Factory() {
+		@Override
+		public Framer newFramer() {
+			return new LineFramer(StringCodec.US_ASCII);
+		}
+	};
+
+	/**
+	 * Strings preceded by their length as a 4 byte big-endian int, see LengthPrefixedFramer.
+	 */
+	public static final Factory LENGTH_PREFIXED = new Factory() {
+		@Override
+		public Framer newFramer() {
+			return new LengthPrefixedFramer(StringCodec.US_ASCII, false);
+		}
+	};
+
+	/**
+	 * Strings preceded by their length as an unsigned LEB128 varint, see LengthPrefixedFramer.
+	 */
+	public static final Factory VARINT_PREFIXED = new Factory() {
+		@Override
+		public Framer newFramer() {
+			return new LengthPrefixedFramer(StringCodec.US_ASCII, true);
+		}
+	};
+
+	/**
+	 * Returns the next complete string in the buffer, and advances the buffer past it. If the buffer
+	 * holds no complete string, its remaining bytes are kept as the start of the next one and the
+	 * buffer is left empty.
+	 * @param buffer Bytes read from the connection, heap or direct.
+	 * @return The string, or null if no complete string is available.
+	 * @throws IOException If a frame is longer than the maximum frame length or malformed.
+	 */
+	public String nextFrame(ByteBuffer buffer) throws IOException;
+
+	/**
+	 * Encodes and frames a string into a buffer, starting at its position.
+	 * @param string String to send.
+	 * @param out Buffer to write the frame into, advanced past it.
+	 * @return True if the frame fit, false if the buffer is too small, in which case its contents are undefined.
+	 */
+	public boolean encode(String string, ByteBuffer out);
+
+	/**
+	 * Encodes and frames a string into a buffer of its own, for sending the same bytes to many connections.
+	 * @param string String to send.
+	 * @return Read-only buffer holding the frame.
+	 */
+	public ByteBuffer encode(String string);
+
+	/**
+	 * Sets the codec strings are encoded and decoded with.
+	 * @param codec Codec to use.
+	 */
+	public void setCodec(StringCodec codec);
+
+	/**
+	 * Sets the longest string accepted, not counting any terminator or prefix.
+	 * @param maxFrameLength Maximum length in bytes.
+	 */
+	public void setMaxFrameLength(int maxFrameLength);
+
+	/**
+	 * Sets how long a buffer grown for a long string is kept after the last long string.
+	 * @param shrinkDelay Delay in milliseconds.
+	 */
+	public void setShrinkDelay(long shrinkDelay);
+
+	/**
+	 * Drops the buffer grown for a long string if no long string has been seen for the shrink delay.
+	 * Called after every read, and from the event loop while the connection is quiet.
+	 * @return True if a grown buffer is still held, so the check needs to be repeated later.
+	 */
+	public boolean shrinkIfIdle();
+}
@@ -0,0 +1,98 @@
+package org.peak15.stringserver;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A concurrent histogram of non-negative values, usually durations in nanoseconds.
+ * Values are counted in power of two buckets, so recording is a few striped adds and never allocates.
+ * Percentiles are accurate to within a factor of two, which is plenty for spotting a slow loop.
+ */
+public class Histogram {
+	private final LongAdder[] buckets = new LongAdder[64];
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	/**
+	 * Creates an empty histogram.
+	 */
+	public Histogram() {
+		for(int i = 0; i < buckets.length; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Records a value.
+	 * @param value Value to record, negative values count as 0.
+	 */
+	public void record(long value) {
+		if(value < 0) value = 0;
+		buckets[64 - Long.numberOfLeadingZeros(value) - (value == 0 ? 0 : 1)].increment();
+		count.increment();
+		sum.add(value);
+		max.accumulate(value);
+	}
+
+	/**
+	 * Returns the number of values recorded.
+	 * @return Count.
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * Returns the mean of the values recorded.
+	 * @return Mean, or 0 if nothing was recorded.
+	 */
+	public double getMean() {
+		long n = count.sum();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+
+	/**
+	 * Returns the largest value recorded.
+	 * @return Maximum.
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Returns an upper bound for the given percentile of the values recorded.
+	 * @param percentile Percentile between 0 and 100.
+	 * @return The upper end of the bucket the percentile falls in, or 0 if nothing was recorded.
+	 */
+	public long getPercentile(double percentile) {
+		long[] counts = new long[buckets.length];
+		long total = 0;
+		for(int i = 0; i < buckets.length; i++) {
+			counts[i] = buckets[i].sum();
+			total += counts[i];
+		}
+		if(total == 0) return 0;
+
+		long rank = (long) Math.ceil(total * percentile / 100);
+		long seen = 0;
+		for(int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if(seen >= rank && counts[i] > 0) {
+				long upper = i == 63 ? Long.MAX_VALUE : (1L << (i + 1)) - 1;
+				return Math.min(upper, getMax());
+			}
+		}
+		return getMax();
+	}
+
+	/**
+	 * Clears every value recorded.
+	 */
+	public void reset() {
+		for(LongAdder bucket : buckets) bucket.reset();
+		count.reset();
+		sum.reset();
+		max.reset();
+	}
+}
@@ -0,0 +1,17 @@
+package org.peak15.stringserver;
+
+/**
+ * Which way a connection went quiet for longer than its idle timeout.
+ */
+public enum IdleType {
+	/**
+	 * Nothing was received from the remote end. The connection is closed.
+	 */
+	READ,
+	
+	/**
+	 * Nothing was written to the remote end. The keepalive line is sent if one is set,
+	 * otherwise the connection is closed.
+	 */
+	WRITE
+}
@@ -0,0 +1,219 @@
+package org.peak15.stringserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+/**
+ * Splits incoming bytes into strings that are each preceded by their length in bytes, either as a
+ * 4 byte big-endian int or as an unsigned LEB128 varint of 1 to 5 bytes.
+ * The length is read first, so a string that arrived whole is decoded straight from the read buffer
+ * without looking at its bytes, and one that spans packets is copied into a buffer that grows as its
+ * bytes arrive, never past the length the prefix gave. A prefix alone does not allocate anything, so a
+ * peer cannot claim a long string to make the server hold a large buffer for it.
+ * Strings are not trimmed and may contain any character, newlines included.
+ *
+ * A buffer allocated for a long string is kept until no long string has been seen for the shrink delay.
+ */
+public class LengthPrefixedFramer implements Framer {
+	// Strings up to this size never count as long.
+	private static final int SMALL_CAPACITY = 256;
+	private static final int MAX_VARINT_LENGTH = 5;
+	private static final byte[] EMPTY = new byte[0];
+
+	private final boolean varint;
+	private StringCodec codec;
+	private int maxFrameLength = LineFramer.DEFAULT_MAX_LINE_LENGTH;
+	private long shrinkDelayNanos = LineFramer.DEFAULT_SHRINK_DELAY * 1000000L;
+
+	// Length of the string being received, or -1 while its prefix is still being read.
+	private int frameLength = -1;
+	private int prefix = 0;
+	private int prefixLength = 0;
+
+	private byte[] pending = EMPTY;
+	private int pendingLength = 0;
+	private long lastLongFrame;
+
+	/**
+	 * Creates a length prefixed framer.
+	 * @param codec Codec to encode and decode strings with.
+	 * @param varint True for varint prefixes, false for 4 byte big-endian prefixes.
+	 */
+	public LengthPrefixedFramer(StringCodec codec, boolean varint) {
+		this.codec = codec;
+		this.varint = varint;
+	}
+
+	@Override
+	public void setCodec(StringCodec codec) {
+		this.codec = codec;
+	}
+
+	@Override
+	public void setMaxFrameLength(int maxFrameLength) {
+		this.maxFrameLength = maxFrameLength;
+	}
+
+	@Override
+	public void setShrinkDelay(long shrinkDelay) {
+		this.shrinkDelayNanos = shrinkDelay * 1000000L;
+	}
+
+	/**
+	 * Returns the next complete string in the buffer, exactly as it was sent.
+	 * @param buffer Bytes read from the connection, heap or direct.
+	 * @return The string, or null if no complete string is available.
+	 * @throws IOException If the string is longer than the maximum frame length or its prefix is malformed.
+	 */
+	@Override
+	public String nextFrame(ByteBuffer buffer) throws IOException {
+		if(frameLength < 0 && !readPrefix(buffer)) return null;
+
+		if(pendingLength == 0 && buffer.remaining() >= frameLength) {
+			// The whole string is in the buffer, decode it in place.
+			int limit = buffer.limit();
+			int end = buffer.position() + frameLength;
+			buffer.limit(end);
+			String string = codec.decode(buffer);
+			buffer.limit(limit);
+			buffer.position(end);
+			frameLength = -1;
+			return string;
+		}
+
+		int length = Math.min(buffer.remaining(), frameLength - pendingLength);
+		int needed = pendingLength + length;
+		if(needed > pending.length) {
+			int capacity = Math.max(needed, Math.max(SMALL_CAPACITY, pending.length * 2));
+			pending = Arrays.copyOf(pending, Math.min(capacity, frameLength));
+		}
+		buffer.get(pending, pendingLength, length);
+		pendingLength += length;
+		if(pendingLength < frameLength) return null;
+
+		String string = codec.decode(pending, 0, pendingLength);
+		if(frameLength > SMALL_CAPACITY) lastLongFrame = System.nanoTime();
+		pendingLength = 0;
+		frameLength = -1;
+		return string;
+	}
+
+	@Override
+	public boolean encode(String string, ByteBuffer out) {
+		int start = out.position();
+		int headerLength = varint ? varintLength(maxEncodedLength(string)) : 4;
+		if(out.remaining() < headerLength) return false;
+
+		out.position(start + headerLength);
+		if(codec.encode(CharBuffer.wrap(string), out).isOverflow()) return false;
+		int length = out.position() - start - headerLength;
+
+		if(varint && varintLength(length) < headerLength) {
+			// Fewer bytes than the worst case, move the string back against its shorter prefix.
+			int shift = headerLength - varintLength(length);
+			for(int i = start + headerLength; i < out.position(); i++) out.put(i - shift, out.get(i));
+			out.position(out.position() - shift);
+		}
+		writePrefix(out, start, length);
+		return true;
+	}
+
+	@Override
+	public ByteBuffer encode(String string) {
+		// Encode behind room for the longest prefix, then write the prefix just in front of the string.
+		int headerSpace = varint ? MAX_VARINT_LENGTH : 4;
+		ByteBuffer buffer = ByteBuffer.allocate(headerSpace + maxEncodedLength(string));
+		buffer.position(headerSpace);
+		codec.encode(CharBuffer.wrap(string), buffer);
+		int length = buffer.position() - headerSpace;
+
+		int start = headerSpace - (varint ? varintLength(length) : 4);
+		writePrefix(buffer, start, length);
+		buffer.limit(headerSpace + length);
+		buffer.position(start);
+		return buffer.slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * Drops the string buffer if it grew for a long string and no long string has been seen since the shrink delay.
+	 * @return True if a grown buffer is still held.
+	 */
+	@Override
+	public boolean shrinkIfIdle() {
+		if(pending.length <= SMALL_CAPACITY) return false;
+		if(pendingLength == 0 && System.nanoTime() - lastLongFrame >= shrinkDelayNanos) {
+			pending = EMPTY;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Reads as much of the length prefix as the buffer holds.
+	 * @return True once the whole prefix has been read and frameLength is set.
+	 */
+	private boolean readPrefix(ByteBuffer buffer) throws IOException {
+		if(!varint && prefixLength == 0 && buffer.remaining() >= 4) {
+			return setFrameLength(buffer.getInt());
+		}
+
+		while(buffer.hasRemaining()) {
+			int b = buffer.get() & 0xFF;
+			if(varint) {
+				prefix |= (b & 0x7F) << (7 * prefixLength++);
+				if((b & 0x80) == 0) return setFrameLength(prefix);
+				if(prefixLength == MAX_VARINT_LENGTH) throw malformed("Varint length prefix is longer than 5 bytes.");
+			}
+			else {
+				prefix = (prefix << 8) | b;
+				if(++prefixLength == 4) return setFrameLength(prefix);
+			}
+		}
+		return false;
+	}
+
+	private boolean setFrameLength(int length) throws IOException {
+		prefix = 0;
+		prefixLength = 0;
+		if(length < 0) throw malformed("Negative length prefix.");
+		if(length > maxFrameLength) throw malformed("Frame exceeds maximum length of " + maxFrameLength + " bytes.");
+		frameLength = length;
+		return true;
+	}
+
+	private IOException malformed(String message) {
+		// Nothing after a bad prefix can be framed, so drop whatever was held.
+		prefix = 0;
+		prefixLength = 0;
+		pendingLength = 0;
+		frameLength = -1;
+		return new IOException(message);
+	}
+
+	private void writePrefix(ByteBuffer buffer, int index, int length) {
+		if(!varint) {
+			buffer.putInt(index, length);
+			return;
+		}
+		while((length & ~0x7F) != 0) {
+			buffer.put(index++, (byte) ((length & 0x7F) | 0x80));
+			length >>>= 7;
+		}
+		buffer.put(index, (byte) length);
+	}
+
+	private int maxEncodedLength(String string) {
+		return (int) Math.ceil(string.length() * codec.maxBytesPerChar());
+	}
+
+	private static int varintLength(int value) {
+		int length = 1;
+		while((value & ~0x7F) != 0) {
+			value >>>= 7;
+			length++;
+		}
+		return length;
+	}
+}
@@ -0,0 +1,185 @@
+package org.peak15.stringserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+/**
+ * Splits incoming bytes into newline terminated strings.
+ * The bytes are scanned for '\n' directly, and the bytes of an incomplete line are kept until the
+ * rest of it arrives, so every line is decoded exactly once no matter how many packets it spans.
+ *
+ * The buffer holding an incomplete line grows as needed up to the maximum line length. Once no long
+ * line has been seen for the shrink delay, the buffer is dropped again.
+ *
+ * Outgoing strings are encoded as they are, so they need to end with a newline of their own.
+ */
+public class LineFramer implements Framer {
+	/**
+	 * Default maximum line length in bytes.
+	 */
+	public static final int DEFAULT_MAX_LINE_LENGTH = 1024 * 1024;
+
+	/**
+	 * Default time in milliseconds a grown line buffer is kept after it was last needed.
+	 */
+	public static final long DEFAULT_SHRINK_DELAY = 30 * 1000;
+
+	// Lines up to this size never count as long.
+	private static final int SMALL_CAPACITY = 256;
+	private static final byte[] EMPTY = new byte[0];
+
+	private StringCodec codec;
+	private int maxLineLength = DEFAULT_MAX_LINE_LENGTH;
+	private long shrinkDelayNanos = DEFAULT_SHRINK_DELAY * 1000000L;
+
+	private byte[] pending = EMPTY;
+	private int pendingLength = 0;
+	private long lastLongLine;
+
+	/**
+	 * Creates a line framer.
+	 * @param codec Codec to decode complete lines with.
+	 */
+	public LineFramer(StringCodec codec) {
+		this.codec = codec;
+	}
+
+	/**
+	 * Sets the codec lines are encoded and decoded with.
+	 * @param codec Codec to use.
+	 */
+	@Override
+	public void setCodec(StringCodec codec) {
+		this.codec = codec;
+	}
+
+	/**
+	 * Sets the longest line accepted, not counting the newline.
+	 * @param maxLineLength Maximum line length in bytes.
+	 */
+	@Override
+	public void setMaxFrameLength(int maxLineLength) {
+		this.maxLineLength = maxLineLength;
+	}
+
+	/**
+	 * Sets how long a grown line buffer is kept after the last long line.
+	 * @param shrinkDelay Delay in milliseconds.
+	 */
+	@Override
+	public void setShrinkDelay(long shrinkDelay) {
+		this.shrinkDelayNanos = shrinkDelay * 1000000L;
+	}
+
+	/**
+	 * Returns the next complete line in the buffer with surrounding whitespace trimmed.
+	 * The buffer is advanced past the line's newline. If the buffer holds no newline, its remaining
+	 * bytes are kept as the start of the next line and the buffer is left empty.
+	 * @param buffer Bytes read from the connection, heap or direct.
+	 * @return The line, or null if no complete line is available.
+	 * @throws IOException If the line is longer than the maximum line length.
+	 */
+	@Override
+	public String nextFrame(ByteBuffer buffer) throws IOException {
+		int start = buffer.position();
+		int limit = buffer.limit();
+
+		int end = start;
+		while(end < limit && buffer.get(end) != '\n') end++;
+
+		checkLength(pendingLength + end - start);
+
+		if(end == limit) {
+			// Incomplete line, hold on to it.
+			append(buffer, limit - start);
+			return null;
+		}
+
+		String line;
+		if(pendingLength == 0) {
+			// The whole line is in the buffer, decode it in place.
+			line = decode(buffer, start, end);
+		}
+		else {
+			append(buffer, end - start);
+			line = decode(ByteBuffer.wrap(pending, 0, pendingLength), 0, pendingLength);
+			pendingLength = 0;
+		}
+		buffer.limit(limit);
+		buffer.position(end + 1);
+		return line;
+	}
+
+	@Override
+	public boolean encode(String string, ByteBuffer out) {
+		return codec.encode(CharBuffer.wrap(string), out).isUnderflow();
+	}
+
+	@Override
+	public ByteBuffer encode(String string) {
+		return codec.encode(string);
+	}
+
+	/**
+	 * Returns the number of bytes held for the line currently being received.
+	 * @return Number of pending bytes.
+	 */
+	public int getPendingLength() {
+		return pendingLength;
+	}
+
+	/**
+	 * Drops the line buffer if it grew for a long line and no long line has been seen since the shrink delay.
+	 * @return True if a grown buffer is still held.
+	 */
+	@Override
+	public boolean shrinkIfIdle() {
+		if(pending.length <= SMALL_CAPACITY) return false;
+		if(pendingLength == 0 && System.nanoTime() - lastLongLine >= shrinkDelayNanos) {
+			pending = EMPTY;
+			return false;
+		}
+		return true;
+	}
+
+	private void checkLength(int length) throws IOException {
+		if(length > maxLineLength) {
+			pendingLength = 0;
+			throw new IOException("Line exceeds maximum length of " + maxLineLength + " bytes.");
+		}
+	}
+
+	/**
+	 * Copies bytes from the buffer onto the end of the pending line, growing it if needed.
+	 * @param buffer Buffer to copy from, advanced by the number of bytes copied.
+	 * @param length Number of bytes to copy.
+	 */
+	private void append(ByteBuffer buffer, int length) {
+		int needed = pendingLength + length;
+		if(needed > pending.length) {
+			int capacity = Math.max(needed, Math.max(64, pending.length * 2));
+			pending = Arrays.copyOf(pending, Math.min(capacity, Math.max(needed, maxLineLength)));
+		}
+		if(needed > SMALL_CAPACITY) lastLongLine = System.nanoTime();
+		buffer.get(pending, pendingLength, length);
+		pendingLength = needed;
+	}
+
+	/**
+	 * Decodes a line, trimming it the same way String.trim() would before any chars are created.
+	 * Leaves the buffer's position and limit around the trimmed line.
+	 */
+	private String decode(ByteBuffer buffer, int start, int end) {
+		while(start < end && isWhitespace(buffer.get(start))) start++;
+		while(end > start && isWhitespace(buffer.get(end - 1))) end--;
+		buffer.limit(end);
+		buffer.position(start);
+		return codec.decode(buffer);
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b >= 0 && b <= ' ';
+	}
+}
@@ -6,9 +6,9 @@ package org.peak15.stringserver;
 public interface Listener {
 	/**
      * Called when the remote end has been connected. This will be invoked before any strings
-     * are received by received(). This will be invoked on the same thread as Server.update().
-     * This method should not block for long periods as other network activity will not be processed
-     * until it returns.
+     * are received by received(). This will be invoked on the same thread as Server.update(), or
+     * on the callback executor if one is set. Without an executor, this method should not block for
+     * long periods as other network activity will not be processed until it returns.
      */
     public void connected(Connection connection);
 
@@ -20,10 +20,38 @@ public interface Listener {
 
     /**
      * Called when a string has been received from the remote end of the connection.
-     * This will be invoked on the same thread as Server.update().
-     * This method should not block for long periods as other network
+     * This will be invoked on the same thread as Server.update(), or on the callback executor if
+     * one is set. Callbacks for one connection never run at the same time and arrive in order.
+     * Without an executor, this method should not block for long periods as other network
      * activity will not be processed until it returns.
      */
     public void received(Connection connection, String string);
 
+    /**
+     * Called when more bytes are queued for the connection than its high watermark allows (writable is
+     * false), and again once the queue drains to the low watermark (writable is true). What happens to
+     * strings sent in between depends on the connection's SlowConsumerPolicy.
+     * This may be invoked on the thread that called send(), so it should return quickly.
+     */
+    public default void writabilityChanged(Connection connection, boolean writable) {
+    }
+
+    /**
+     * Called when nothing has been received from, or written to, the connection for longer than the
+     * server's idle timeout. After a READ timeout the connection is closed, and disconnected() follows.
+     * After a WRITE timeout the server's keepalive line is sent, or the connection is closed if there is none.
+     * This will be invoked on the thread servicing the connection, or on the callback executor if one is set.
+     */
+    public default void idle(Connection connection, IdleType type) {
+    }
+
+    /**
+     * Called when the remote end has run out of its inbound rate limit TcpConnection.ABUSE_THRESHOLD
+     * times in a row, each time soon after reading resumed. Reading is already held back to the limit,
+     * so this only reports clients that keep trying, for example to close or ban them.
+     * This will be invoked on the thread servicing the connection, or on the callback executor if one is set.
+     */
+    public default void rateLimited(Connection connection) {
+    }
+
 }
@@ -0,0 +1,35 @@
+package org.peak15.stringserver;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A string encoded and framed once for a broadcast. Connections that use compression share a single
+ * compressed copy, made by the first of them to need it.
+ */
+class SharedFrame {
+	final ByteBuffer encoded;
+	private final DeflaterPool deflaterPool;
+	private final int compressionLevel;
+	private ByteBuffer deflated;
+
+	/**
+	 * Creates a shared frame.
+	 * @param encoded Encoded and framed string, never modified.
+	 * @param deflaterPool Pool to borrow a deflater from if a recipient uses compression.
+	 * @param compressionLevel Level to compress at.
+	 */
+	SharedFrame(ByteBuffer encoded, DeflaterPool deflaterPool, int compressionLevel) {
+		this.encoded = encoded;
+		this.deflaterPool = deflaterPool;
+		this.compressionLevel = compressionLevel;
+	}
+
+	/**
+	 * Returns the frame compressed as a stream of its own, compressing it on the first call.
+	 * @return Compressed frame, never modified.
+	 */
+	synchronized ByteBuffer deflated() {
+		if(deflated == null) deflated = DeflateStream.deflateShared(encoded, deflaterPool, compressionLevel);
+		return deflated;
+	}
+}
@@ -0,0 +1,27 @@
+package org.peak15.stringserver;
+
+/**
+ * What a connection does with new strings once more bytes are queued for it than its high watermark.
+ * The policy stays in effect until the queue drains to the low watermark.
+ */
+public enum SlowConsumerPolicy {
+	/**
+	 * Discard the strings being sent. Strings already queued are still delivered.
+	 */
+	DROP_NEWEST,
+	
+	/**
+	 * Discard the oldest queued strings to make room. A string that is partially written is never discarded.
+	 */
+	DROP_OLDEST,
+	
+	/**
+	 * Close the connection.
+	 */
+	DISCONNECT,
+	
+	/**
+	 * Keep queuing, and rely on the Listener's writabilityChanged() to stop sending.
+	 */
+	NOTIFY
+}
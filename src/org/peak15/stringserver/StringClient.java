@@ -0,0 +1,411 @@
+package org.peak15.stringserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * NIO client for talking to string servers, the counterpart of StringServer.
+ * Any number of connections share one selector and the thread started by start(), and they are
+ * framed, encoded and queued by the same TcpConnection a server uses. Strings may be sent as soon as
+ * connect() returns: they are queued until the connection is established, and sends never wait for
+ * a reply, so requests can be pipelined.
+ *
+ * To use StringClient, instantiate this class with a Listener, call start(), then call connect()
+ * once for every server to talk to. With a reconnect delay set, dropped connections are reconnected
+ * with exponential backoff, and Listener.connected() is called again each time.
+ */
+public class StringClient implements Runnable {
+	private volatile boolean running = false;
+	private final EventLoop loop;
+	private final ConnectionRegistry connections = new ConnectionRegistry();
+	private final StringServerMetrics metrics = new StringServerMetrics(connections);
+	private final ConcurrentHashMap<Integer, Link> links = new ConcurrentHashMap<Integer, Link>();
+	private int nextConnectionID = 1;
+	private Listener listener;
+	private StringCodec codec = StringCodec.US_ASCII;
+	private Framer.Factory framing = Framer.NEWLINE;
+	private BufferPool bufferPool = BufferPool.DEFAULT;
+	private int maxLineLength = LineFramer.DEFAULT_MAX_LINE_LENGTH;
+	private int lowWatermark = TcpConnection.DEFAULT_LOW_WATERMARK;
+	private int highWatermark = TcpConnection.DEFAULT_HIGH_WATERMARK;
+	private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.NOTIFY;
+	private Executor callbackExecutor;
+	private int maxPendingCallbacks;
+	private int compressionLevel = 0;
+	private DeflaterPool deflaterPool = DeflaterPool.DEFAULT;
+	private volatile long minReconnectDelay = 0;
+	private volatile long maxReconnectDelay = 0;
+
+	/**
+	 * A connection the application asked for, which is reconnected until it is disconnected.
+	 */
+	private static class Link {
+		final Connection connection;
+		final InetSocketAddress address;
+		volatile boolean wanted = true;
+		// Guarded by this, true from the connection closing until the next attempt starts.
+		boolean waiting = false;
+		// Only used on the loop's thread.
+		long delay;
+
+		Link(Connection connection, InetSocketAddress address) {
+			this.connection = connection;
+			this.address = address;
+		}
+	}
+
+	/**
+	 * Creates a new client.
+	 * @param listener Listener to use for the connections.
+	 */
+	public StringClient(Listener listener) {
+		this.listener = listener;
+		this.loop = new EventLoop(this);
+	}
+
+	/**
+	 * Returns the metrics for this client's connections.
+	 * @return The metrics.
+	 */
+	public StringServerMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Sets the codec used to encode and decode strings. Only affects connections made afterwards.
+	 * @param codec Codec to use, StringCodec.US_ASCII by default.
+	 */
+	public void setCodec(StringCodec codec) {
+		if(codec == null) throw new IllegalArgumentException("Codec cannot be null.");
+		this.codec = codec;
+	}
+
+	/**
+	 * Sets how strings are framed on the wire, which must match the server. Only affects connections made afterwards.
+	 * @param framing Factory that creates each connection's framer, Framer.NEWLINE by default.
+	 */
+	public void setFramer(Framer.Factory framing) {
+		if(framing == null) throw new IllegalArgumentException("Framing cannot be null.");
+		this.framing = framing;
+	}
+
+	/**
+	 * Sets the pool that connections borrow read and write buffers from.
+	 * @param bufferPool Pool to use, BufferPool.DEFAULT by default.
+	 */
+	public void setBufferPool(BufferPool bufferPool) {
+		if(bufferPool == null) throw new IllegalArgumentException("Buffer pool cannot be null.");
+		this.bufferPool = bufferPool;
+	}
+
+	/**
+	 * Sets the longest line accepted from a server. Longer lines close the connection.
+	 * @param maxLineLength Maximum line length in bytes, LineFramer.DEFAULT_MAX_LINE_LENGTH by default.
+	 */
+	public void setMaxLineLength(int maxLineLength) {
+		if(maxLineLength < 1) throw new IllegalArgumentException("Maximum line length must be at least 1.");
+		this.maxLineLength = maxLineLength;
+	}
+
+	/**
+	 * Sets the outbound watermarks for new connections, see StringServer.setWriteWatermarks().
+	 * @param lowWatermark Queued bytes at which a connection is writable again.
+	 * @param highWatermark Queued bytes past which a connection is not writable.
+	 */
+	public void setWriteWatermarks(int lowWatermark, int highWatermark) {
+		if(lowWatermark < 0 || highWatermark < lowWatermark)
+			throw new IllegalArgumentException("Watermarks must satisfy 0 <= low <= high.");
+		this.lowWatermark = lowWatermark;
+		this.highWatermark = highWatermark;
+	}
+
+	/**
+	 * Sets the slow consumer policy for new connections. Defaults to NOTIFY.
+	 * @param slowConsumerPolicy Policy to apply.
+	 */
+	public void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+		if(slowConsumerPolicy == null) throw new IllegalArgumentException("Policy cannot be null.");
+		this.slowConsumerPolicy = slowConsumerPolicy;
+	}
+
+	/**
+	 * Runs Listener callbacks on an executor instead of the client thread, see StringServer.setCallbackExecutor().
+	 * Only affects connections made afterwards.
+	 * @param executor Executor to run callbacks on, or null to run them on the client thread.
+	 * @param maxPendingCallbacks Number of waiting callbacks per connection at which reading from it is suspended.
+	 */
+	public void setCallbackExecutor(Executor executor, int maxPendingCallbacks) {
+		if(executor != null && maxPendingCallbacks < 1)
+			throw new IllegalArgumentException("Maximum pending callbacks must be at least 1.");
+		this.callbackExecutor = executor;
+		this.maxPendingCallbacks = maxPendingCallbacks;
+	}
+
+	/**
+	 * Asks servers for compression with StringServer.COMPRESSION_HANDSHAKE as soon as each connection
+	 * is made. Everything sent afterwards is compressed, so the server must have compression enabled.
+	 * Only affects connections made afterwards.
+	 * @param compressionLevel Level from 1 (fastest) to 9 (smallest), or 0 for no compression, the default.
+	 */
+	public void setCompressionLevel(int compressionLevel) {
+		if(compressionLevel < 0 || compressionLevel > 9)
+			throw new IllegalArgumentException("Compression level must be from 0 to 9.");
+		this.compressionLevel = compressionLevel;
+	}
+
+	/**
+	 * Sets the pool compressed connections borrow deflaters from.
+	 * @param deflaterPool Pool to use, DeflaterPool.DEFAULT by default.
+	 */
+	public void setDeflaterPool(DeflaterPool deflaterPool) {
+		if(deflaterPool == null) throw new IllegalArgumentException("Deflater pool cannot be null.");
+		this.deflaterPool = deflaterPool;
+	}
+
+	/**
+	 * Reconnects connections that fail or are dropped. The first attempt waits the minimum delay, and
+	 * every failed attempt doubles the delay up to the maximum. Each wait is shortened by a random amount
+	 * of up to half, so connections dropped together do not all come back at once.
+	 * Strings sent while a connection waits to reconnect are dropped.
+	 * @param minReconnectDelay Milliseconds before the first attempt, or 0 to never reconnect, the default.
+	 * @param maxReconnectDelay Longest wait between attempts in milliseconds.
+	 */
+	public void setReconnectDelay(long minReconnectDelay, long maxReconnectDelay) {
+		if(minReconnectDelay < 0 || maxReconnectDelay < minReconnectDelay)
+			throw new IllegalArgumentException("Delays must satisfy 0 <= min <= max.");
+		this.minReconnectDelay = minReconnectDelay;
+		this.maxReconnectDelay = maxReconnectDelay;
+	}
+
+	/**
+	 * Starts connecting to a server without waiting for the connection to be established.
+	 * Listener.connected() is called once it is, and strings sent before then are queued.
+	 * @param host Host name or address of the server.
+	 * @param port Port of the server.
+	 * @return The new connection.
+	 * @throws IOException If the host is unknown or the connection could not be started.
+	 */
+	public Connection connect(String host, int port) throws IOException {
+		return connect(new InetSocketAddress(host, port));
+	}
+
+	/**
+	 * Starts connecting to a server without waiting for the connection to be established.
+	 * Listener.connected() is called once it is, and strings sent before then are queued.
+	 * @param address Address of the server.
+	 * @return The new connection.
+	 * @throws IOException If the host is unknown or the connection could not be started.
+	 */
+	public Connection connect(InetSocketAddress address) throws IOException {
+		if(address.isUnresolved()) throw new UnknownHostException(address.getHostString());
+
+		Connection connection = new Connection(listener);
+		connection.client = this;
+		if(callbackExecutor != null) connection.setCallbackExecutor(callbackExecutor, maxPendingCallbacks);
+		synchronized(this) {
+			connection.id = nextConnectionID++;
+			if(nextConnectionID == -1) nextConnectionID = 1;
+		}
+
+		Link link = new Link(connection, address);
+		link.delay = minReconnectDelay;
+		links.put(connection.id, link);
+		try {
+			SocketChannel socketChannel = open(connection, address);
+			loop.register(connection, socketChannel);
+		} catch(IOException e) {
+			links.remove(connection.id);
+			throw e;
+		}
+		return connection;
+	}
+
+	/**
+	 * Closes a connection for good. Closing it with Connection.close() instead lets it reconnect.
+	 * @param connection Connection to close.
+	 */
+	public void disconnect(Connection connection) {
+		Link link = links.remove(connection.id);
+		if(link != null) link.wanted = false;
+		connection.close();
+	}
+
+	/**
+	 * Gives a connection a fresh TcpConnection and starts connecting it.
+	 * @return The connecting channel, which still has to be registered with the loop.
+	 */
+	private SocketChannel open(Connection connection, InetSocketAddress address) throws IOException {
+		TcpConnection tcp = new TcpConnection();
+		tcp.setCodec(codec);
+		tcp.setFramer(framing.newFramer());
+		tcp.setMetrics(metrics);
+		tcp.setBufferPool(bufferPool);
+		tcp.setMaxLineLength(maxLineLength);
+		tcp.setWriteWatermarks(lowWatermark, highWatermark);
+		tcp.setSlowConsumerPolicy(slowConsumerPolicy);
+		if(compressionLevel > 0) tcp.setCompression(deflaterPool, compressionLevel);
+
+		SocketChannel socketChannel = SocketChannel.open();
+		tcp.connect(socketChannel, address);
+		connection.tcp = tcp;
+		// The handshake goes out ahead of anything sent on the connection.
+		if(compressionLevel > 0) tcp.requestCompression(connection);
+		return socketChannel;
+	}
+
+	void registerOperation(Connection connection, EventLoop eventLoop) {
+		try {
+			SelectionKey selectionKey = connection.tcp.register(eventLoop.getSelector());
+			selectionKey.attach(connection);
+			connection.eventLoop = eventLoop;
+
+			// Loopback connections are often established right away.
+			if(connection.tcp.finishConnect()) connectOperation(connection);
+		} catch(IOException e) {
+			StringServer.printDbg(connection + " unable to connect: " + e.getMessage());
+			connection.close();
+		}
+	}
+
+	void connectOperation(Connection connection) {
+		Link link = links.get(connection.id);
+		if(link != null) link.delay = minReconnectDelay;
+
+		connection.setConnected(true);
+		connections.add(connection);
+
+		connection.notifyConnected();
+	}
+
+	/**
+	 * Forgets a closed connection, or arranges for it to reconnect.
+	 * @param connection Connection that was closed, on any thread.
+	 */
+	void closeOperation(Connection connection) {
+		connections.remove(connection);
+
+		Link link = links.get(connection.id);
+		if(link == null) return;
+		if(!link.wanted || minReconnectDelay == 0) {
+			links.remove(connection.id);
+			return;
+		}
+		synchronized(link) {
+			if(link.waiting) return;
+			link.waiting = true;
+		}
+		final Link waiting = link;
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				scheduleReconnect(waiting);
+			}
+		});
+	}
+	
+	/**
+	 * Waits out a link's backoff before reconnecting it, and doubles the backoff for next time.
+	 * Runs on the loop's thread.
+	 */
+	private void scheduleReconnect(final Link link) {
+		long delay = link.delay;
+		link.delay = Math.min(delay * 2, maxReconnectDelay);
+		delay -= ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+		loop.schedule(new Runnable() {
+			@Override
+			public void run() {
+				reconnect(link);
+			}
+		}, delay * 1000000L);
+	}
+
+	/**
+	 * Connects a link again once its backoff has passed. Runs on the loop's thread.
+	 */
+	private void reconnect(Link link) {
+		synchronized(link) {
+			link.waiting = false;
+		}
+		if(!link.wanted) return;
+
+		Connection connection = link.connection;
+		try {
+			// Look the host up again, it may have moved.
+			InetSocketAddress address = new InetSocketAddress(link.address.getHostString(), link.address.getPort());
+			if(address.isUnresolved()) throw new UnknownHostException(address.getHostString());
+			open(connection, address);
+			StringServer.printDbg(connection + " reconnecting to " + address + ".");
+			registerOperation(connection, loop);
+		} catch(IOException e) {
+			StringServer.printDbg(connection + " unable to reconnect: " + e.getMessage());
+			connection.close();
+		}
+	}
+
+	/**
+	 * Connects, reads or writes whatever is ready, and reconnects connections whose backoff has passed.
+	 * @param timeout Wait for up to the specified milliseconds for a connection to be ready to
+	 * 		process. May be zero to return immediately if there are no connections to process.
+	 */
+	public void update(int timeout) throws IOException {
+		loop.update(timeout);
+	}
+
+	/**
+	 * Continually updates this client until stop() is called.
+	 */
+	@Override
+	public void run() {
+		running = true;
+		while(running) {
+			try {
+				update(500);
+			} catch(IOException e) {
+				StringServer.printErr("Error updating client connections: " + e.getMessage());
+				close();
+			}
+		}
+		loop.closeSelector();
+	}
+
+	/**
+	 * Starts a new thread that calls run().
+	 */
+	public void start() {
+		new Thread(this, "Client").start();
+	}
+
+	/**
+	 * Closes every connection for good and causes run() to return.
+	 */
+	public void stop() {
+		running = false;
+		loop.stop();
+		close();
+	}
+
+	/**
+	 * Closes every connection for good.
+	 */
+	public void close() {
+		for(Link link : new ArrayList<Link>(links.values())) {
+			disconnect(link.connection);
+		}
+	}
+
+	/**
+	 * Returns the connections that are currently established.
+	 * @return Connected connections.
+	 */
+	public Set<Connection> getConnections() {
+		return connections.asSet();
+	}
+}
@@ -0,0 +1,150 @@
+package org.peak15.stringserver;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+/**
+ * Converts between strings and the bytes sent over the network.
+ * Encoders and decoders are not thread safe, so each thread gets its own, created once and reused.
+ * Characters that cannot be encoded or decoded are replaced rather than dropped.
+ *
+ * Lines are found by scanning for the byte '\n' before anything is decoded, so the charset must
+ * encode '\n' as that single byte and never use it inside another character, as ASCII and UTF-8 do.
+ * A multi-byte character split across reads is therefore always decoded whole.
+ */
+public class StringCodec {
+	/**
+	 * US-ASCII, the default.
+	 */
+	public static final StringCodec US_ASCII = new StringCodec(Charset.forName("US-ASCII"));
+
+	/**
+	 * UTF-8.
+	 */
+	public static final StringCodec UTF_8 = new StringCodec(Charset.forName("UTF-8"));
+
+	// Largest per-thread decode buffer kept between calls, in chars.
+	private static final int MAX_CACHED_DECODE_BUFFER = 16 * 1024;
+
+	private final Charset charset;
+	private final float maxBytesPerChar;
+	private final ThreadLocal<CharsetEncoder> encoders;
+	private final ThreadLocal<CharsetDecoder> decoders;
+	private final ThreadLocal<CharBuffer> decodeBuffers;
+
+	/**
+	 * Creates a codec for the given charset.
+	 * @param charset Charset to use, which must encode '\n' as the single byte 0x0A.
+	 */
+	public StringCodec(final Charset charset) {
+		if(!Arrays.equals("\n".getBytes(charset), new byte[] {'\n'}))
+			throw new IllegalArgumentException(charset + " does not encode newlines as a single byte.");
+		this.charset = charset;
+		this.maxBytesPerChar = charset.newEncoder().maxBytesPerChar();
+
+		this.encoders = new ThreadLocal<CharsetEncoder>() {
+			@Override
+			protected CharsetEncoder initialValue() {
+				return charset.newEncoder()
+						.onMalformedInput(CodingErrorAction.REPLACE)
+						.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			}
+		};
+		this.decoders = new ThreadLocal<CharsetDecoder>() {
+			@Override
+			protected CharsetDecoder initialValue() {
+				return charset.newDecoder()
+						.onMalformedInput(CodingErrorAction.REPLACE)
+						.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			}
+		};
+		this.decodeBuffers = new ThreadLocal<CharBuffer>() {
+			@Override
+			protected CharBuffer initialValue() {
+				return CharBuffer.allocate(256);
+			}
+		};
+	}
+
+	/**
+	 * Returns the charset.
+	 * @return The charset.
+	 */
+	public Charset getCharset() {
+		return charset;
+	}
+
+	/**
+	 * Returns the most bytes a single char can encode to.
+	 * @return Maximum bytes per char.
+	 */
+	public float maxBytesPerChar() {
+		return maxBytesPerChar;
+	}
+
+	/**
+	 * Encodes all of the chars into the buffer using this thread's encoder.
+	 * @param in Chars to encode.
+	 * @param out Buffer to encode into.
+	 * @return UNDERFLOW if everything was encoded, OVERFLOW if the buffer ran out of room.
+	 */
+	public CoderResult encode(CharBuffer in, ByteBuffer out) {
+		CharsetEncoder encoder = encoders.get();
+		encoder.reset();
+		CoderResult result = encoder.encode(in, out, true);
+		if(result.isUnderflow()) result = encoder.flush(out);
+		return result;
+	}
+
+	/**
+	 * Encodes a string into a buffer of its own, for sending the same bytes to many connections.
+	 * @param string String to encode.
+	 * @return Read-only buffer holding the encoded string.
+	 */
+	public ByteBuffer encode(String string) {
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.ceil(string.length() * maxBytesPerChar));
+		encode(CharBuffer.wrap(string), buffer);
+		buffer.flip();
+		return buffer.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Decodes complete characters using this thread's decoder.
+	 * @param bytes Array holding the bytes.
+	 * @param offset Index of the first byte.
+	 * @param length Number of bytes.
+	 * @return The decoded string.
+	 */
+	public String decode(byte[] bytes, int offset, int length) {
+		return decode(ByteBuffer.wrap(bytes, offset, length));
+	}
+
+	/**
+	 * Decodes the remaining bytes of a buffer, which must hold complete characters, using this thread's decoder.
+	 * @param in Bytes to decode, heap or direct. Its position is advanced to its limit.
+	 * @return The decoded string.
+	 */
+	public String decode(ByteBuffer in) {
+		CharsetDecoder decoder = decoders.get();
+		CharBuffer out = decodeBuffers.get();
+		int needed = (int) Math.ceil(in.remaining() * decoder.maxCharsPerByte());
+		if(out.capacity() < needed) {
+			out = CharBuffer.allocate(needed);
+			// Only keep buffers of a reasonable size around, a long line is rare.
+			if(needed <= MAX_CACHED_DECODE_BUFFER) decodeBuffers.set(out);
+		}
+
+		out.clear();
+		decoder.reset();
+		decoder.decode(in, out, true);
+		decoder.flush(out);
+		out.flip();
+		return out.toString();
+	}
+}
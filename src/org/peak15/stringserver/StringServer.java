@@ -1,15 +1,25 @@
 package org.peak15.stringserver;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.nio.channels.CancelledKeyException;
+import java.net.StandardSocketOptions;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * NIO server wrapper for dealing exclusively in simple strings, i.e. telnet, HTTP, etc...
@@ -17,36 +27,140 @@ import java.util.Set;
  * Released under the New BSD License.
  * 
  * To use StringServer, instantiate this class with a Listener, call start(), then call bind().
+ * Connections are spread across one worker thread per available processor, pass a number of
+ * worker threads to the constructor to change that.
+ * A server may listen on any number of addresses, added and removed with bind() and unbind()
+ * while its connections carry on.
  * 
  * @author Michael Craft <mcraft@peak15.org>
  * @author Nathan Sweet <misc@n4te.com>
  */
 public class StringServer implements Runnable {
+	/**
+	 * Number of worker threads to use for one event loop per available processor.
+	 */
+	public static final int DEFAULT_WORKER_THREADS = Runtime.getRuntime().availableProcessors();
+	
+	/**
+	 * Line a client sends to ask for compression, see setCompressionLevel().
+	 */
+	public static final String COMPRESSION_HANDSHAKE = "COMPRESS DEFLATE";
+	
 	private boolean running = false;
-	private Selector selector;
+	private final EventLoop mainLoop;
+	private final EventLoop[] workerLoops;
+	private int nextWorker = 0;
+	private final Selector selector;
 	private Object updateLock = new Object();
-	private ServerSocketChannel serverChannel;
-	private Set<Connection> connections = new HashSet<Connection>();
-	private int nextConnectionID = 1;
+	private final List<Acceptor> acceptors = new CopyOnWriteArrayList<Acceptor>();
+	private final ConnectionRegistry connections = new ConnectionRegistry();
+	// Members of each broadcast group, a group is dropped when its last member leaves.
+	private final ConcurrentHashMap<String, ConnectionRegistry> groups = new ConcurrentHashMap<String, ConnectionRegistry>();
+	private final StringServerMetrics metrics = new StringServerMetrics(connections);
+	private String metricsName = "Server";
+	private final AtomicInteger nextConnectionID = new AtomicInteger(1);
 	private Listener listener;
+	private StringCodec codec = StringCodec.US_ASCII;
+	private Framer.Factory framing = Framer.NEWLINE;
+	// Frames broadcasts once for every recipient, encoding keeps no state so threads can share it.
+	private Framer broadcastFramer = newFramer(framing, codec);
+	private BufferPool bufferPool = BufferPool.DEFAULT;
+	private int maxLineLength = LineFramer.DEFAULT_MAX_LINE_LENGTH;
+	private long shrinkDelay = LineFramer.DEFAULT_SHRINK_DELAY;
+	private int readBudgetBytes = TcpConnection.DEFAULT_READ_BUDGET;
+	private int readBudgetStrings = 0;
+	private int inboundLinesPerSecond = 0;
+	private int inboundBytesPerSecond = 0;
+	private int lowWatermark = TcpConnection.DEFAULT_LOW_WATERMARK;
+	private int highWatermark = TcpConnection.DEFAULT_HIGH_WATERMARK;
+	private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.NOTIFY;
+	private Executor callbackExecutor;
+	private int maxPendingCallbacks;
+	private long readIdleTimeout = 0;
+	private long writeIdleTimeout = 0;
+	private String keepAlive;
+	private int compressionLevel = 0;
+	private DeflaterPool deflaterPool = DeflaterPool.DEFAULT;
+	// Admission control, see setMaxConnections(), setMaxConnectionsPerAddress() and setMaxAcceptRate().
+	private volatile int maxConnections = 0;
+	private volatile int maxConnectionsPerAddress = 0;
+	private volatile TokenBucket acceptLimiter;
+	private final AtomicInteger admittedCount = new AtomicInteger();
+	private final ConcurrentHashMap<InetAddress, Integer> admittedPerAddress = new ConcurrentHashMap<InetAddress, Integer>();
 	
 	public static boolean debug = false;
 	
-	private void acceptOperation(SocketChannel socketChannel) {
+	/**
+	 * A listening socket and the loop that accepts its connections.
+	 */
+	private static class Acceptor {
+		// Address as given to bind(), and the address actually bound.
+		final InetSocketAddress address;
+		final InetSocketAddress boundAddress;
+		final ServerSocketChannel channel;
+		final EventLoop eventLoop;
+		
+		Acceptor(InetSocketAddress address, InetSocketAddress boundAddress, ServerSocketChannel channel, EventLoop eventLoop) {
+			this.address = address;
+			this.boundAddress = boundAddress;
+			this.channel = channel;
+			this.eventLoop = eventLoop;
+		}
+	}
+	
+	void acceptOperation(SocketChannel socketChannel, EventLoop eventLoop) {
+		// Turn away what the limits do not allow before anything is allocated for it.
+		InetAddress address = socketChannel.socket().getInetAddress();
+		String rejection = admit(address);
+		if(rejection != null) {
+			reject(socketChannel, rejection);
+			return;
+		}
+		
 		Connection connection = new Connection(listener);
 		connection.server = this;
+		connection.admitted = true;
+		if(maxConnectionsPerAddress > 0) connection.admittedAddress = address;
+		connection.tcp.setCodec(codec);
+		connection.tcp.setFramer(framing.newFramer());
+		connection.tcp.setMetrics(metrics);
+		connection.tcp.setBufferPool(bufferPool);
+		connection.tcp.setMaxLineLength(maxLineLength);
+		connection.tcp.setShrinkDelay(shrinkDelay);
+		connection.tcp.setReadBudget(readBudgetBytes, readBudgetStrings);
+		connection.tcp.setInboundRateLimit(inboundLinesPerSecond, inboundBytesPerSecond);
+		connection.tcp.setWriteWatermarks(lowWatermark, highWatermark);
+		connection.tcp.setSlowConsumerPolicy(slowConsumerPolicy);
+		if(callbackExecutor != null) connection.setCallbackExecutor(callbackExecutor, maxPendingCallbacks);
+		connection.setIdleTimeouts(readIdleTimeout, writeIdleTimeout, keepAlive);
+		if(compressionLevel > 0) connection.tcp.setCompression(deflaterPool, compressionLevel);
+		
+		// IDs skip -1 when they wrap around.
+		connection.id = nextConnectionID.getAndUpdate(id -> id + 1 == -1 ? 1 : id + 1);
+		metrics.accepts.increment();
+		
+		if(workerLoops.length == 0 || eventLoop != mainLoop) {
+			// A worker accepting on a shared port keeps the connections it accepts.
+			registerOperation(connection, socketChannel, eventLoop);
+		}
+		else {
+			// Round robin across the workers, which register the channel on their own threads.
+			workerLoops[nextWorker].register(connection, socketChannel);
+			nextWorker = (nextWorker + 1) % workerLoops.length;
+		}
+	}
+	
+	void registerOperation(Connection connection, SocketChannel socketChannel, EventLoop eventLoop) {
 		try {
-			SelectionKey selectionKey = connection.tcp.accept(selector, socketChannel);
+			SelectionKey selectionKey = connection.tcp.accept(eventLoop.getSelector(), socketChannel);
 			selectionKey.attach(connection);
-			
-			int id = nextConnectionID++;
-			if(nextConnectionID == -1) nextConnectionID = 1;
-			connection.id = id;
+			connection.eventLoop = eventLoop;
 			connection.setConnected(true);
 			
 			connections.add(connection);
 			
 			connection.notifyConnected();
+			connection.startIdleChecks();
 		} catch(IOException e) {
 			connection.close();
 			printDbg("Unable to accept connection: " + e);
@@ -54,18 +168,356 @@ public class StringServer implements Runnable {
 	}
 	
 	/**
-	 * Creates a new server.
+	 * Forgets a closed connection.
+	 * @param connection Connection to remove.
+	 */
+	void removeConnection(Connection connection) {
+		connections.remove(connection);
+		release(connection);
+		Set<String> joined = connection.groups;
+		if(joined != null) {
+			for(String group : joined) leave(group, connection);
+		}
+	}
+	
+	/**
+	 * Counts a new connection against the limits.
+	 * @param address Remote address of the connection.
+	 * @return Why the connection is rejected, or null if it is admitted and counted.
+	 */
+	private String admit(InetAddress address) {
+		TokenBucket limiter = acceptLimiter;
+		if(limiter != null) {
+			synchronized(limiter) {
+				if(!limiter.tryAcquire(1)) return "accept rate limit";
+			}
+		}
+		
+		if(admittedCount.incrementAndGet() > maxConnections && maxConnections > 0) {
+			admittedCount.decrementAndGet();
+			return "connection limit";
+		}
+		
+		final int perAddress = maxConnectionsPerAddress;
+		if(perAddress > 0) {
+			final boolean[] full = new boolean[1];
+			admittedPerAddress.compute(address, (key, count) -> {
+				if(count == null) return 1;
+				full[0] = count >= perAddress;
+				return full[0] ? count : count + 1;
+			});
+			if(full[0]) {
+				admittedCount.decrementAndGet();
+				return "per-address connection limit";
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Stops counting a connection against the limits. Safe to call more than once.
+	 */
+	void release(Connection connection) {
+		InetAddress address;
+		synchronized(connection) {
+			if(!connection.admitted) return;
+			connection.admitted = false;
+			address = connection.admittedAddress;
+		}
+		admittedCount.decrementAndGet();
+		if(address != null) {
+			admittedPerAddress.computeIfPresent(address, (key, count) -> count == 1 ? null : count - 1);
+		}
+	}
+	
+	/**
+	 * Closes a socket that was not admitted. Lingering is turned off so the close is a reset, which
+	 * costs the server no time in TIME_WAIT.
+	 */
+	private void reject(SocketChannel socketChannel, String reason) {
+		metrics.rejects.increment();
+		if(debug) printDbg("Rejected connection from " + socketChannel.socket().getRemoteSocketAddress() + ": " + reason + ".");
+		try {
+			socketChannel.setOption(StandardSocketOptions.SO_LINGER, 0);
+		} catch(IOException ignored) {}
+		try {
+			socketChannel.close();
+		} catch(IOException ignored) {}
+	}
+	
+	/**
+	 * Creates a new server with DEFAULT_WORKER_THREADS worker threads, one per available processor.
+	 * @param listener Listener to use for the connections.
 	 */
 	public StringServer(Listener listener) {
+		this(listener, DEFAULT_WORKER_THREADS);
+	}
+	
+	/**
+	 * Creates a new server that spreads its connections across a number of worker threads,
+	 * each with its own selector. The thread started by start() then only accepts connections.
+	 * @param listener Listener to use for the connections.
+	 * @param workerThreads Number of worker threads, DEFAULT_WORKER_THREADS for one per available processor,
+	 * 		or 0 to handle every connection on the server thread.
+	 */
+	public StringServer(Listener listener, int workerThreads) {
+		if(workerThreads < 0) throw new IllegalArgumentException("Worker thread count cannot be negative.");
 		this.listener = listener;
 		
-		try {
-			this.selector = Selector.open();
-		} catch(IOException e) {
-			throw new RuntimeException("Error opening selector.", e);
+		this.mainLoop = new EventLoop(this);
+		this.selector = mainLoop.getSelector();
+		this.workerLoops = new EventLoop[workerThreads];
+		for(int i = 0; i < workerThreads; i++) {
+			workerLoops[i] = new EventLoop(this);
 		}
 	}
 	
+	/**
+	 * Returns the metrics for this server. They are also registered as a JMX MBean while the server
+	 * is started, named org.peak15.stringserver:type=StringServer,name="Server" unless changed with
+	 * setMetricsName().
+	 * @return The metrics.
+	 */
+	public StringServerMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Sets the name the metrics MBean is registered under when the server starts.
+	 * Servers running side by side in one JVM need different names.
+	 * @param metricsName Value of the MBean's name key.
+	 */
+	public void setMetricsName(String metricsName) {
+		if(metricsName == null) throw new IllegalArgumentException("Name cannot be null.");
+		this.metricsName = metricsName;
+	}
+	
+	/**
+	 * Sets the codec strings are encoded and decoded with. US-ASCII is the default, StringCodec.UTF_8
+	 * is also available. Only affects connections accepted afterwards, so call this before bind().
+	 * @param codec Codec to use.
+	 */
+	public void setCodec(StringCodec codec) {
+		if(codec == null) throw new IllegalArgumentException("Codec cannot be null.");
+		this.codec = codec;
+		this.broadcastFramer = newFramer(framing, codec);
+	}
+	
+	/**
+	 * Sets how strings are framed on the wire. Framer.NEWLINE is the default and suits telnet,
+	 * Framer.LENGTH_PREFIXED and Framer.VARINT_PREFIXED precede every string with its length, which
+	 * is cheaper to read and lets strings contain newlines. Both ends must use the same framing.
+	 * Only affects connections accepted afterwards, so call this before bind().
+	 * @param framing Factory that creates each connection's framer.
+	 */
+	public void setFramer(Framer.Factory framing) {
+		if(framing == null) throw new IllegalArgumentException("Framing cannot be null.");
+		this.framing = framing;
+		this.broadcastFramer = newFramer(framing, codec);
+	}
+	
+	/**
+	 * Returns the factory that creates each connection's framer.
+	 * @return The framer factory.
+	 */
+	public Framer.Factory getFramer() {
+		return framing;
+	}
+	
+	/**
+	 * Returns the codec strings are encoded and decoded with.
+	 * @return The codec.
+	 */
+	public StringCodec getCodec() {
+		return codec;
+	}
+	
+	/**
+	 * Sets the pool of direct buffers that connections borrow from while reading or writing.
+	 * By default every server shares BufferPool.DEFAULT. Only affects connections accepted afterwards.
+	 * @param bufferPool Pool to use.
+	 */
+	public void setBufferPool(BufferPool bufferPool) {
+		if(bufferPool == null) throw new IllegalArgumentException("Buffer pool cannot be null.");
+		this.bufferPool = bufferPool;
+	}
+	
+	/**
+	 * Sets the longest line a client may send. A client that sends a longer line is disconnected.
+	 * With length prefixed framing this limits the length of every frame instead.
+	 * Only affects connections accepted afterwards.
+	 * @param maxLineLength Maximum line length in bytes, not counting the newline or length prefix.
+	 * 		Defaults to LineFramer.DEFAULT_MAX_LINE_LENGTH.
+	 */
+	public void setMaxLineLength(int maxLineLength) {
+		if(maxLineLength < 1) throw new IllegalArgumentException("Maximum line length must be at least 1.");
+		this.maxLineLength = maxLineLength;
+	}
+	
+	/**
+	 * Sets how long a connection keeps the buffer it grew to receive a long line, once no more long
+	 * lines arrive. Only affects connections accepted afterwards.
+	 * @param shrinkDelay Delay in milliseconds. Defaults to LineFramer.DEFAULT_SHRINK_DELAY.
+	 */
+	public void setShrinkDelay(long shrinkDelay) {
+		if(shrinkDelay < 0) throw new IllegalArgumentException("Shrink delay cannot be negative.");
+		this.shrinkDelay = shrinkDelay;
+	}
+	
+	/**
+	 * Sets how much is read from each connection before its thread moves on to the other connections
+	 * it services, so a few clients sending flat out do not hold up quiet ones. A connection with more
+	 * to read is read again on the thread's next pass, without waiting for the selector.
+	 * Only affects connections accepted afterwards.
+	 * @param maxBytes Bytes read per pass, or 0 for no limit. Defaults to TcpConnection.DEFAULT_READ_BUDGET.
+	 * @param maxStrings Strings delivered per pass, or 0 for no limit, the default.
+	 */
+	public void setReadBudget(int maxBytes, int maxStrings) {
+		if(maxBytes < 0 || maxStrings < 0) throw new IllegalArgumentException("Read budget cannot be negative.");
+		this.readBudgetBytes = maxBytes;
+		this.readBudgetStrings = maxStrings;
+	}
+	
+	/**
+	 * Limits how fast each client may send. A client that runs out is not read from until its limit
+	 * refills, so TCP pushes back on it, and Listener.rateLimited() reports clients that keep at it.
+	 * Only affects connections accepted afterwards.
+	 * @param linesPerSecond Strings received per second from each client, or 0 for no limit, the default.
+	 * @param bytesPerSecond Bytes received per second from each client, or 0 for no limit, the default.
+	 */
+	public void setInboundRateLimit(int linesPerSecond, int bytesPerSecond) {
+		if(linesPerSecond < 0 || bytesPerSecond < 0) throw new IllegalArgumentException("Rate limit cannot be negative.");
+		this.inboundLinesPerSecond = linesPerSecond;
+		this.inboundBytesPerSecond = bytesPerSecond;
+	}
+	
+	/**
+	 * Sets the default outbound watermarks for new connections. Once more than the high watermark
+	 * is queued for a connection, the slow consumer policy applies to it until its queue drains to the
+	 * low watermark. Individual connections can be changed with Connection.setWriteWatermarks().
+	 * @param lowWatermark Queued bytes at which a connection is writable again.
+	 * 		Defaults to TcpConnection.DEFAULT_LOW_WATERMARK.
+	 * @param highWatermark Queued bytes past which a connection is not writable.
+	 * 		Defaults to TcpConnection.DEFAULT_HIGH_WATERMARK.
+	 */
+	public void setWriteWatermarks(int lowWatermark, int highWatermark) {
+		if(lowWatermark < 0 || highWatermark < lowWatermark)
+			throw new IllegalArgumentException("Watermarks must satisfy 0 <= low <= high.");
+		this.lowWatermark = lowWatermark;
+		this.highWatermark = highWatermark;
+	}
+	
+	/**
+	 * Sets the default slow consumer policy for new connections. Defaults to NOTIFY, which only
+	 * calls Listener.writabilityChanged() and keeps queuing.
+	 * @param slowConsumerPolicy Policy to apply.
+	 */
+	public void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+		if(slowConsumerPolicy == null) throw new IllegalArgumentException("Policy cannot be null.");
+		this.slowConsumerPolicy = slowConsumerPolicy;
+	}
+	
+	/**
+	 * Runs Listener callbacks on an executor instead of the thread servicing the connection, so
+	 * listeners may block. Callbacks for one connection still run one at a time and in order, while
+	 * different connections run in parallel. Either a bounded pool such as Executors.newFixedThreadPool()
+	 * or a virtual thread per task executor works. Only affects connections accepted afterwards.
+	 * @param executor Executor to run callbacks on, or null to run them on the server thread.
+	 * @param maxPendingCallbacks Number of waiting callbacks per connection at which the server stops
+	 * 		reading from that connection until its listener catches up.
+	 */
+	public void setCallbackExecutor(Executor executor, int maxPendingCallbacks) {
+		if(executor != null && maxPendingCallbacks < 1)
+			throw new IllegalArgumentException("Maximum pending callbacks must be at least 1.");
+		this.callbackExecutor = executor;
+		this.maxPendingCallbacks = maxPendingCallbacks;
+	}
+	
+	/**
+	 * Sets how long new connections may go quiet. Idle connections are found by a timing wheel on
+	 * each event loop, so the cost does not grow with the number of connections, and a timeout fires
+	 * within a tenth of a second of being due. Listener.idle() is called for every timeout.
+	 * Only affects connections accepted afterwards.
+	 * @param readIdleTimeout Milliseconds without receiving anything before a connection is closed,
+	 * 		or 0 for no limit, the default.
+	 * @param writeIdleTimeout Milliseconds without writing anything before the keepalive line is sent,
+	 * 		or the connection is closed if there is none. 0 for no limit, the default.
+	 */
+	public void setIdleTimeouts(long readIdleTimeout, long writeIdleTimeout) {
+		if(readIdleTimeout < 0 || writeIdleTimeout < 0) throw new IllegalArgumentException("Timeouts cannot be negative.");
+		this.readIdleTimeout = readIdleTimeout;
+		this.writeIdleTimeout = writeIdleTimeout;
+	}
+	
+	/**
+	 * Sets a line to send to connections that have had nothing written to them for the write idle
+	 * timeout, rather than closing them. Besides keeping NAT and firewall state alive, writing to a
+	 * half-open connection makes TCP notice that the remote end is gone.
+	 * Only affects connections accepted afterwards.
+	 * @param keepAlive Line to send, including its newline, or null to close write idle connections.
+	 */
+	public void setKeepAlive(String keepAlive) {
+		if(keepAlive != null && keepAlive.isEmpty()) throw new IllegalArgumentException("Keepalive line cannot be empty.");
+		this.keepAlive = keepAlive;
+	}
+	
+	/**
+	 * Lets clients ask for compression, which suits large and repetitive text. A client that sends
+	 * COMPRESSION_HANDSHAKE as a string of its own gets the same line back, after which everything
+	 * either end sends is raw deflate, flushed after every string. The client must compress everything
+	 * it sends after the handshake, and decompress everything after the answer.
+	 * Broadcasts to compressed connections are compressed once and shared.
+	 * Only affects connections accepted afterwards.
+	 * @param compressionLevel Level from 1 (fastest) to 9 (smallest), or 0 to ignore the handshake, the default.
+	 */
+	public void setCompressionLevel(int compressionLevel) {
+		if(compressionLevel < 0 || compressionLevel > 9)
+			throw new IllegalArgumentException("Compression level must be from 0 to 9.");
+		this.compressionLevel = compressionLevel;
+	}
+	
+	/**
+	 * Sets the most connections the server keeps at once. Connections accepted beyond it are closed
+	 * straight away, before a Connection is created or any listener is told.
+	 * @param maxConnections Connection limit, or 0 for no limit, the default.
+	 */
+	public void setMaxConnections(int maxConnections) {
+		if(maxConnections < 0) throw new IllegalArgumentException("Connection limit cannot be negative.");
+		this.maxConnections = maxConnections;
+	}
+	
+	/**
+	 * Sets the most connections the server keeps from any one remote IP address, the address
+	 * Connection.getRemoteAddress() reports. Connections beyond it are closed straight away.
+	 * Only connections accepted afterwards are counted, so call this before bind().
+	 * @param maxConnectionsPerAddress Connection limit per address, or 0 for no limit, the default.
+	 */
+	public void setMaxConnectionsPerAddress(int maxConnectionsPerAddress) {
+		if(maxConnectionsPerAddress < 0) throw new IllegalArgumentException("Connection limit cannot be negative.");
+		this.maxConnectionsPerAddress = maxConnectionsPerAddress;
+	}
+	
+	/**
+	 * Limits how fast new connections are accepted, across all bound addresses. Up to a second's worth
+	 * may arrive at once, connections beyond the rate are closed straight away, so a crowd of clients
+	 * reconnecting at once is spread out by their own backoff rather than all handled together.
+	 * @param acceptsPerSecond Connections accepted per second, or 0 for no limit, the default.
+	 */
+	public void setMaxAcceptRate(int acceptsPerSecond) {
+		if(acceptsPerSecond < 0) throw new IllegalArgumentException("Accept rate cannot be negative.");
+		this.acceptLimiter = acceptsPerSecond > 0 ? new TokenBucket(acceptsPerSecond, acceptsPerSecond) : null;
+	}
+	
+	/**
+	 * Sets the pool compressed connections and broadcasts borrow deflaters from.
+	 * By default every server and client shares DeflaterPool.DEFAULT.
+	 * @param deflaterPool Pool to use.
+	 */
+	public void setDeflaterPool(DeflaterPool deflaterPool) {
+		if(deflaterPool == null) throw new IllegalArgumentException("Deflater pool cannot be null.");
+		this.deflaterPool = deflaterPool;
+	}
+	
 	/**
 	 * Print to standard output.
 	 * @param obj Object to print.
@@ -96,33 +548,149 @@ public class StringServer implements Runnable {
 	}
 	
 	/**
-	 * Opens a server on the specified port.
-	 * @param port Port to listen on.
+	 * Starts listening on the specified port, in addition to any addresses already bound.
+	 * @param port Port to listen on, or 0 for any free port.
+	 * @return The address bound.
 	 * @throws IOException if the port could not be bound to.
 	 */
-	public void bind(int port) throws IOException {
-		bind(new InetSocketAddress(port));
+	public InetSocketAddress bind(int port) throws IOException {
+		return bind(new InetSocketAddress(port));
 	}
 	
 	/**
-	 * Opens a server on the specified InetSocketAddesses.
-	 * @param socket Socket to listen on.
+	 * Starts listening on the specified address, in addition to any addresses already bound.
+	 * Connections already accepted are not affected.
+	 * @param socket Address to listen on.
+	 * @return The address bound, which tells the port if port 0 was asked for.
 	 * @throws IOException if the socket could not be bound to.
 	 */
-	public void bind(InetSocketAddress socket) throws IOException {
-		close();
-		synchronized(updateLock) {
-			selector.wakeup();
-			try {
-				serverChannel = selector.provider().openServerSocketChannel();
-				serverChannel.socket().bind(socket);
-				serverChannel.configureBlocking(false);
-				serverChannel.register(selector, SelectionKey.OP_ACCEPT);
-				printDbg("Accepting connections on socket: " + socket);
-			} catch(IOException e) {
-				close();
-				throw e;
+	public InetSocketAddress bind(InetSocketAddress socket) throws IOException {
+		return bind(socket, 1);
+	}
+	
+	/**
+	 * Starts listening on the specified address with several sockets bound to it with SO_REUSEPORT,
+	 * in addition to any addresses already bound. The operating system spreads incoming connections
+	 * across the sockets, and with worker threads each socket is accepted on by a different worker,
+	 * which keeps the connections it accepts. Without worker threads every socket is accepted on by
+	 * the server thread.
+	 * @param socket Address to listen on.
+	 * @param acceptorCount Number of sockets. More than one requires SO_REUSEPORT support.
+	 * @return The address bound.
+	 * @throws IOException if the socket could not be bound to, or SO_REUSEPORT is not supported.
+	 */
+	public InetSocketAddress bind(InetSocketAddress socket, int acceptorCount) throws IOException {
+		if(acceptorCount < 1) throw new IllegalArgumentException("Acceptor count must be at least 1.");
+		
+		List<ServerSocketChannel> channels = new ArrayList<ServerSocketChannel>(acceptorCount);
+		InetSocketAddress boundAddress = socket;
+		try {
+			for(int i = 0; i < acceptorCount; i++) {
+				ServerSocketChannel channel = selector.provider().openServerSocketChannel();
+				channels.add(channel);
+				if(acceptorCount > 1) {
+					if(!channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT))
+						throw new IOException("SO_REUSEPORT is not supported on this platform.");
+					channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+				}
+				// Later sockets bind the port the first one got, in case it was asked for any free port.
+				channel.socket().bind(boundAddress);
+				boundAddress = (InetSocketAddress) channel.getLocalAddress();
+				channel.configureBlocking(false);
+			}
+		} catch(IOException e) {
+			for(ServerSocketChannel channel : channels) {
+				try {
+					channel.close();
+				} catch(IOException ignored) {}
+			}
+			throw e;
+		}
+		
+		for(int i = 0; i < acceptorCount; i++) {
+			EventLoop eventLoop = acceptorCount > 1 && workerLoops.length > 0 ? workerLoops[i % workerLoops.length] : mainLoop;
+			Acceptor acceptor = new Acceptor(socket, boundAddress, channels.get(i), eventLoop);
+			acceptors.add(acceptor);
+			registerAcceptor(acceptor);
+		}
+		printDbg("Accepting connections on socket: " + boundAddress);
+		return boundAddress;
+	}
+	
+	/**
+	 * Stops listening on an address. Connections already accepted are not affected.
+	 * The port is free to bind again once this returns, unless this is called from the server or a
+	 * worker thread, in which case it is freed as soon as that thread gets back to its selector.
+	 * @param socket Address as given to bind(), or as returned by it.
+	 * @return True if the server was listening on the address.
+	 */
+	public boolean unbind(InetSocketAddress socket) {
+		boolean found = false;
+		for(Acceptor acceptor : acceptors) {
+			if(acceptor.address.equals(socket) || acceptor.boundAddress.equals(socket)) {
+				acceptors.remove(acceptor);
+				closeAcceptor(acceptor);
+				awaitSelect(acceptor.eventLoop);
+				found = true;
+			}
+		}
+		if(found) printDbg("Stopped accepting connections on socket: " + socket);
+		return found;
+	}
+	
+	/**
+	 * Returns the addresses the server is listening on.
+	 * @return Set of the bound addresses at the time of the call, cannot be modified.
+	 */
+	public Set<InetSocketAddress> getBoundAddresses() {
+		Set<InetSocketAddress> addresses = new LinkedHashSet<InetSocketAddress>();
+		for(Acceptor acceptor : acceptors) addresses.add(acceptor.boundAddress);
+		return Collections.unmodifiableSet(addresses);
+	}
+	
+	/**
+	 * Registers a listening socket with the selector of the loop that accepts on it, on that loop's thread.
+	 */
+	private void registerAcceptor(final Acceptor acceptor) {
+		acceptor.eventLoop.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					acceptor.channel.register(acceptor.eventLoop.getSelector(), SelectionKey.OP_ACCEPT);
+				} catch(IOException e) {
+					// Unbound before it got here.
+					printDbg("Unable to accept on " + acceptor.boundAddress + ": " + e.getMessage());
+				}
+			}
+		});
+	}
+	
+	private void closeAcceptor(Acceptor acceptor) {
+		try {
+			acceptor.channel.close();
+		} catch(IOException e) {
+			printDbg("Unable to close server socket " + acceptor.boundAddress + ".");
+		}
+		acceptor.eventLoop.getSelector().wakeup();
+	}
+	
+	/**
+	 * Waits for a loop to select again, which is when the sockets closed on its selector are released.
+	 */
+	private void awaitSelect(EventLoop eventLoop) {
+		if(eventLoop.inEventLoop()) return;
+		final CountDownLatch selected = new CountDownLatch(1);
+		eventLoop.execute(new Runnable() {
+			@Override
+			public void run() {
+				selected.countDown();
 			}
+		});
+		try {
+			// A loop that is not running has nothing registered to release.
+			selected.await(1, TimeUnit.SECONDS);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
 	}
 	
@@ -132,61 +700,10 @@ public class StringServer implements Runnable {
      * 		process. May be zero to return immediately if there are no connections to process.
      */
 	public void update(int timeout) throws IOException {
-		// Block to avoid a select while the selector is used to bind the server connection.
+		// Block to avoid a select while close() selects one last time.
 		synchronized (updateLock) {}
 		
-		if(timeout > 0) {
-			selector.select(timeout);
-		}
-		else {
-			selector.selectNow();
-		}
-		
-		Set<SelectionKey> keys = selector.selectedKeys();
-        synchronized (keys) {
-        	Iterator<SelectionKey> iter = keys.iterator();
-        	
-        	while(iter.hasNext()) {
-        		SelectionKey selectionKey = iter.next();
-        		iter.remove();
-        		try {
-        			int ops = selectionKey.readyOps();
-        			Connection fromConnection = (Connection) selectionKey.attachment();
-        			
-        			if(fromConnection != null) {
-        				// Must be a read or write operation.
-        				if((ops & SelectionKey.OP_READ) == SelectionKey.OP_READ) {
-        					try {
-        						// Gobble up all the strings immediately available.
-        						while(true) {
-        							String string = fromConnection.tcp.readString(fromConnection);
-        							if(string == null) break;
-        							printDbg(fromConnection + " received string.");
-        							fromConnection.notifyReceived(string);
-        						}
-        					} catch(IOException e) {
-        						printDbg(fromConnection + " warning: " + e.getMessage());
-        						fromConnection.close();
-        					}
-        				}
-        				continue;
-        			}
-        			
-        			if((ops & SelectionKey.OP_ACCEPT) == SelectionKey.OP_ACCEPT) {
-        				if(serverChannel == null) continue;
-        				try {
-        					SocketChannel socketChannel = serverChannel.accept();
-        					if(socketChannel != null) acceptOperation(socketChannel);
-        				} catch(IOException e) {
-        					printDbg("Unable to accept new connection: " + e.getMessage());
-        				}
-        				continue;
-        			}
-        		} catch (CancelledKeyException ignored) {
-					// Connection is closed.
-				}
-        	}
-        }
+		mainLoop.update(timeout);
 	}
 
 	/**
@@ -195,36 +712,37 @@ public class StringServer implements Runnable {
 	public void close() {
 		if(connections.size() > 0)
 			print("Closing server connections...");
-		for(Connection connection : connections)
+		for(Connection connection : connections.snapshot())
             connection.close();
-		connections = new HashSet<Connection>();
-		connections.add(new Connection(null));
+		connections.clear();
+		groups.clear();
 		
-		if(serverChannel != null) {
-			try {
-				serverChannel.close();
-				print("Server closed.");
-			} catch(IOException e) {
-				printDbg("Unable to close server.");
+		if(!acceptors.isEmpty()) {
+			for(Acceptor acceptor : acceptors) closeAcceptor(acceptor);
+			// Sockets accepted on by workers are only released once their loops select again.
+			for(Acceptor acceptor : acceptors) {
+				if(acceptor.eventLoop != mainLoop) awaitSelect(acceptor.eventLoop);
 			}
-			serverChannel = null;
+			acceptors.clear();
+			print("Server closed.");
 		}
 		
 		// Select one last time to complete closing the socket.
         synchronized (updateLock) {
         selector.wakeup();
 		try {
-			selector.selectNow();
+			// Nothing left to select once run() has returned after stop().
+			if(selector.isOpen()) selector.selectNow();
 		} catch (IOException ignored) {}
         }
 	}
 	
 	/**
 	 * Returns the current connections.
-	 * @return Set of connections, should not be modified.
+	 * @return Set of the connections at the time of the call, cannot be modified.
 	 */
 	public Set<Connection> getConnections() {
-		return connections;
+		return connections.asSet();
 	}
 	
 	/**
@@ -233,9 +751,10 @@ public class StringServer implements Runnable {
 	 * @param string String to send.
 	 */
 	public void sendToAllExcept(int connectionID, String string) {
-		for(Connection c : connections) {
-			if(c.id != connectionID && c.id != 0)
-				c.send(string);
+		SharedFrame frame = encodeBroadcast(string);
+		for(Connection c : connections.snapshot()) {
+			if(c.id != connectionID)
+				c.sendEncoded(frame);
 		}
 	}
 	
@@ -244,24 +763,149 @@ public class StringServer implements Runnable {
 	 * @param string String to send.
 	 */
 	public void sendToAll(String string) {
-		for(Connection c : connections) {
-			if(c.id != 0)
-				c.send(string);
+		SharedFrame frame = encodeBroadcast(string);
+		for(Connection c : connections.snapshot()) {
+			c.sendEncoded(frame);
+		}
+	}
+	
+	/**
+	 * Adds a connection to a broadcast group, creating the group if needed. Closed connections leave
+	 * all of their groups automatically.
+	 * @param group Name of the group.
+	 * @param connection Connection to add.
+	 */
+	public void join(String group, final Connection connection) {
+		if(group == null) throw new IllegalArgumentException("Group cannot be null.");
+		synchronized(connection) {
+			if(connection.groups == null) connection.groups = ConcurrentHashMap.newKeySet();
+		}
+		connection.groups.add(group);
+		groups.compute(group, (name, members) -> {
+			if(members == null) members = new ConnectionRegistry();
+			members.add(connection);
+			return members;
+		});
+		// A connection closed meanwhile may have missed this group on its way out.
+		if(!connection.isConnected()) leave(group, connection);
+	}
+	
+	/**
+	 * Removes a connection from a broadcast group. The group is forgotten once it is empty.
+	 * @param group Name of the group.
+	 * @param connection Connection to remove.
+	 */
+	public void leave(String group, final Connection connection) {
+		if(connection.groups != null) connection.groups.remove(group);
+		groups.computeIfPresent(group, (name, members) -> {
+			members.remove(connection);
+			return members.size() == 0 ? null : members;
+		});
+	}
+	
+	/**
+	 * Returns the members of a broadcast group.
+	 * @param group Name of the group.
+	 * @return Unmodifiable view of the members, empty if the group does not exist.
+	 */
+	public Set<Connection> getGroup(String group) {
+		ConnectionRegistry members = groups.get(group);
+		if(members == null) return Collections.emptySet();
+		return members.asSet();
+	}
+	
+	/**
+	 * Send string to every member of a broadcast group. The string is encoded once and the members
+	 * are iterated from a snapshot, so neither the group's size nor the number of groups slows down
+	 * other groups or joins and leaves.
+	 * @param group Name of the group.
+	 * @param string String to send.
+	 */
+	public void sendToGroup(String group, String string) {
+		ConnectionRegistry members = groups.get(group);
+		if(members == null) return;
+		Connection[] snapshot = members.snapshot();
+		// Nobody to send to, so skip encoding.
+		if(snapshot.length == 0) return;
+		SharedFrame frame = encodeBroadcast(string);
+		for(Connection c : snapshot) {
+			c.sendEncoded(frame);
+		}
+	}
+	
+	/**
+	 * Send string to every member of a broadcast group except one.
+	 * @param group Name of the group.
+	 * @param connectionID Client ID to exclude.
+	 * @param string String to send.
+	 */
+	public void sendToGroupExcept(String group, int connectionID, String string) {
+		ConnectionRegistry members = groups.get(group);
+		if(members == null) return;
+		Connection[] snapshot = members.snapshot();
+		// Nobody to send to, so skip encoding.
+		if(snapshot.length == 0) return;
+		SharedFrame frame = encodeBroadcast(string);
+		for(Connection c : snapshot) {
+			if(c.id != connectionID) c.sendEncoded(frame);
 		}
 	}
 	
+	/**
+	 * Encodes and frames a broadcast string once, so fanning it out costs one write per connection.
+	 * @param string String to encode.
+	 * @return Encoded string, shared by every recipient.
+	 */
+	private SharedFrame encodeBroadcast(String string) {
+		if(string == null || string.equals("")) throw new IllegalArgumentException("String cannot be null.");
+		return new SharedFrame(broadcastFramer.encode(string), deflaterPool, Math.max(1, compressionLevel));
+	}
+	
+	private static Framer newFramer(Framer.Factory framing, StringCodec codec) {
+		Framer framer = framing.newFramer();
+		framer.setCodec(codec);
+		return framer;
+	}
+	
 	/**
 	 * Send string to specified client.
 	 * @param connectionID Client ID to send to.
 	 * @param string String to send.
 	 */
 	public void sendTo(int connectionID, String string) {
-		for(Connection c : connections) {
-			if(c.id == connectionID && c.id != 0) {
-				c.send(string);
-				break;
-			}
-		}
+		Connection c = connections.get(connectionID);
+		if(c != null) c.send(string);
+	}
+	
+	/**
+	 * Send a batch of strings to specified client with a single gathering write.
+	 * @param connectionID Client ID to send to.
+	 * @param strings Strings to send, in order.
+	 * @return Number of bytes sent or queued, or 0 if there is no such client.
+	 */
+	public int sendTo(int connectionID, Collection<String> strings) {
+		Connection c = connections.get(connectionID);
+		if(c == null) return 0;
+		return c.send(strings);
+	}
+	
+	/**
+	 * Runs a task on the server thread, the thread that calls update(). May be called from any thread,
+	 * and wakes the server thread at most once however many tasks are submitted before it gets to them.
+	 * Tasks run in the order they were submitted and must not block.
+	 * @param task Task to run.
+	 */
+	public void execute(Runnable task) {
+		mainLoop.execute(task);
+	}
+	
+	/**
+	 * Runs a task on the server thread after a delay. May be called from any thread.
+	 * @param task Task to run.
+	 * @param delay Delay in milliseconds, accurate to a tenth of a second.
+	 */
+	public void schedule(Runnable task, long delay) {
+		mainLoop.schedule(task, delay * 1000000L);
 	}
 	
 	/**
@@ -276,22 +920,36 @@ public class StringServer implements Runnable {
 			} catch(IOException e) {
 				printErr("Error updating server connections: " + e.getMessage());
 				close();
+			} catch(RuntimeException e) {
+				printErr("Error updating server connections: " + e);
 			}
 		}
+		mainLoop.closeSelector();
 	}
 	
 	/**
 	 * Starts a new thread that calls run().
 	 */
 	public void start() {
+		metrics.register(metricsName);
 		new Thread(this, "Server").start();
+		for(int i = 0; i < workerLoops.length; i++) {
+			workerLoops[i].start("Server Worker " + (i + 1));
+		}
 	}
 	
 	/**
-	 * Closes the server and causes run() to return.
+	 * Closes the server and causes run() and the worker threads to return. Their selectors are closed
+	 * as they return, so a stopped server cannot be started again.
 	 */
 	public void stop() {
-		running = false;
+		// Close first, while the workers still select and can release the sockets they accepted on.
 		close();
+		for(EventLoop workerLoop : workerLoops) {
+			workerLoop.stop();
+		}
+		running = false;
+		selector.wakeup();
+		metrics.unregister();
 	}
 }
@@ -0,0 +1,209 @@
+package org.peak15.stringserver;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and timings for a server, registered as a JMX MBean while the server is started.
+ * Everything recorded on the network threads is a striped LongAdder add, so collecting metrics
+ * never allocates and can stay on in production. Times are in nanoseconds.
+ */
+public class StringServerMetrics implements StringServerMetricsMBean {
+	final LongAdder bytesIn = new LongAdder();
+	final LongAdder bytesOut = new LongAdder();
+	final LongAdder messagesIn = new LongAdder();
+	final LongAdder messagesOut = new LongAdder();
+	final LongAdder accepts = new LongAdder();
+	final LongAdder rejects = new LongAdder();
+	final LongAdder throttles = new LongAdder();
+	final LongAdder closes = new LongAdder();
+	final LongAdder selectWakeups = new LongAdder();
+	final Histogram updateTime = new Histogram();
+	final Histogram callbackTime = new Histogram();
+
+	private final ConnectionRegistry connections;
+	private ObjectName objectName;
+
+	/**
+	 * Creates metrics for a server.
+	 * @param connections The server's connections, read when queue depths are asked for.
+	 */
+	StringServerMetrics(ConnectionRegistry connections) {
+		this.connections = connections;
+	}
+
+	/**
+	 * Registers these metrics with the platform MBean server. If another server already registered
+	 * metrics under the same name, these are not registered, so unregister() never removes the other
+	 * server's metrics.
+	 * @param name Value of the name key in the ObjectName.
+	 */
+	void register(String name) {
+		objectName = null;
+		try {
+			MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+			ObjectName candidate = new ObjectName("org.peak15.stringserver:type=StringServer,name=" + ObjectName.quote(name));
+			mbeanServer.registerMBean(this, candidate);
+			objectName = candidate;
+		} catch(InstanceAlreadyExistsException e) {
+			StringServer.printErr("Metrics not registered, another server already uses the name " + name
+					+ ". Give each server its own name with setMetricsName().");
+		} catch(JMException e) {
+			StringServer.printDbg("Unable to register metrics: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Removes these metrics from the platform MBean server.
+	 */
+	void unregister() {
+		if(objectName == null) return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		} catch(JMException e) {
+			StringServer.printDbg("Unable to unregister metrics: " + e.getMessage());
+		}
+		objectName = null;
+	}
+
+	/**
+	 * Returns the histogram of time spent handling ready keys in each event loop iteration,
+	 * not counting the time spent waiting in select().
+	 * @return Update time histogram.
+	 */
+	public Histogram getUpdateTime() {
+		return updateTime;
+	}
+
+	/**
+	 * Returns the histogram of time spent inside Listener callbacks.
+	 * @return Callback time histogram.
+	 */
+	public Histogram getCallbackTime() {
+		return callbackTime;
+	}
+
+	@Override
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	@Override
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	@Override
+	public long getMessagesIn() {
+		return messagesIn.sum();
+	}
+
+	@Override
+	public long getMessagesOut() {
+		return messagesOut.sum();
+	}
+
+	@Override
+	public long getAccepts() {
+		return accepts.sum();
+	}
+
+	@Override
+	public long getRejects() {
+		return rejects.sum();
+	}
+
+	@Override
+	public long getThrottles() {
+		return throttles.sum();
+	}
+
+	@Override
+	public long getCloses() {
+		return closes.sum();
+	}
+
+	@Override
+	public long getSelectWakeups() {
+		return selectWakeups.sum();
+	}
+
+	@Override
+	public int getConnectionCount() {
+		return connections.size();
+	}
+
+	@Override
+	public long getTotalQueuedBytes() {
+		long total = 0;
+		for(Connection connection : connections.snapshot()) total += connection.getQueuedBytes();
+		return total;
+	}
+
+	@Override
+	public long getMaxQueuedBytes() {
+		long max = 0;
+		for(Connection connection : connections.snapshot()) max = Math.max(max, connection.getQueuedBytes());
+		return max;
+	}
+
+	@Override
+	public long getUpdateCount() {
+		return updateTime.getCount();
+	}
+
+	@Override
+	public double getUpdateTimeMean() {
+		return updateTime.getMean();
+	}
+
+	@Override
+	public long getUpdateTime99thPercentile() {
+		return updateTime.getPercentile(99);
+	}
+
+	@Override
+	public long getUpdateTimeMax() {
+		return updateTime.getMax();
+	}
+
+	@Override
+	public long getCallbackCount() {
+		return callbackTime.getCount();
+	}
+
+	@Override
+	public double getCallbackTimeMean() {
+		return callbackTime.getMean();
+	}
+
+	@Override
+	public long getCallbackTime99thPercentile() {
+		return callbackTime.getPercentile(99);
+	}
+
+	@Override
+	public long getCallbackTimeMax() {
+		return callbackTime.getMax();
+	}
+
+	@Override
+	public void reset() {
+		bytesIn.reset();
+		bytesOut.reset();
+		messagesIn.reset();
+		messagesOut.reset();
+		accepts.reset();
+		rejects.reset();
+		throttles.reset();
+		closes.reset();
+		selectWakeups.reset();
+		updateTime.reset();
+		callbackTime.reset();
+	}
+}
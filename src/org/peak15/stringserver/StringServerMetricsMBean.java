@@ -0,0 +1,34 @@
+package org.peak15.stringserver;
+
+/**
+ * JMX view of a server's metrics. Times are in nanoseconds.
+ */
+public interface StringServerMetricsMBean {
+	public long getBytesIn();
+	public long getBytesOut();
+	public long getMessagesIn();
+	public long getMessagesOut();
+	public long getAccepts();
+	public long getRejects();
+	public long getThrottles();
+	public long getCloses();
+	public long getSelectWakeups();
+	public int getConnectionCount();
+	public long getTotalQueuedBytes();
+	public long getMaxQueuedBytes();
+
+	public long getUpdateCount();
+	public double getUpdateTimeMean();
+	public long getUpdateTime99thPercentile();
+	public long getUpdateTimeMax();
+
+	public long getCallbackCount();
+	public double getCallbackTimeMean();
+	public long getCallbackTime99thPercentile();
+	public long getCallbackTimeMax();
+
+	/**
+	 * Clears every counter and histogram.
+	 */
+	public void reset();
+}
@@ -2,41 +2,327 @@ package org.peak15.stringserver;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.net.SocketAddress;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
+import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.Charset;
-import java.nio.charset.CharsetEncoder;
 import java.util.ArrayDeque;
+import java.util.Collection;
 import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Handles the actual TCP transactions of a Connection.
  */
 public class TcpConnection {
-	private static final CharsetEncoder charEncoder = Charset.forName("US-ASCII").newEncoder();
+	/**
+	 * Default number of queued bytes at which a connection becomes writable again.
+	 */
+	public static final int DEFAULT_LOW_WATERMARK = 256 * 1024;
+	
+	/**
+	 * Default number of queued bytes past which the slow consumer policy applies.
+	 */
+	public static final int DEFAULT_HIGH_WATERMARK = 1024 * 1024;
+	
+	/**
+	 * Default number of bytes read from a connection per event loop iteration.
+	 */
+	public static final int DEFAULT_READ_BUDGET = 64 * 1024;
+	
+	/**
+	 * Number of times in a row a connection runs out of inbound tokens before Listener.rateLimited() is called.
+	 */
+	public static final int ABUSE_THRESHOLD = 10;
 	
-	private final ByteBuffer readBuffer, writeBuffer;
-	private final CharBuffer charBuffer;
+	// Running out again within this long of being resumed counts as in a row.
+	private static final long ABUSE_WINDOW = TimeUnit.SECONDS.toNanos(1);
+	
+	private BufferPool bufferPool = BufferPool.DEFAULT;
+	private StringServerMetrics metrics;
 	private SelectionKey selectionKey;
+	// Guards the write queue and changes to the key's interest set.
 	private final Object writeLock = new Object();
+	private volatile boolean readSuspended = false;
+	// True from connect() until finishConnect() succeeds, everything sent meanwhile is queued.
+	private volatile boolean connecting = false;
+	// Guarded by the write lock: OP_WRITE is set, or a flush has been handed to the event loop.
+	private boolean writeInterest = false;
+	private boolean flushScheduled = false;
+	private Runnable flushTask;
+	private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<ByteBuffer>();
+	private volatile long queuedBytes = 0;
+	private volatile boolean writable = true;
+	// Guarded by the write lock: the writability last handed to the listener, and whether a thread
+	// is handing it over right now. The listener is only called with the lock released.
+	private boolean notifiedWritable = true;
+	private boolean notifyingWritable = false;
+	private volatile long lastReadTime;
+	private volatile long lastWriteTime;
+	private int lowWatermark = DEFAULT_LOW_WATERMARK;
+	private int highWatermark = DEFAULT_HIGH_WATERMARK;
+	private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.NOTIFY;
 	
-	private String currentString = "";
+	private StringCodec codec = StringCodec.US_ASCII;
+	private Framer framer = new LineFramer(codec);
+	private int maxLineLength = LineFramer.DEFAULT_MAX_LINE_LENGTH;
+	private long shrinkDelay = LineFramer.DEFAULT_SHRINK_DELAY;
 	private Queue<String> readyStrings = new ArrayDeque<String>();
+	// Set while a check to shrink the framer's buffer is scheduled. Only used by the thread servicing the connection.
+	private boolean shrinkScheduled = false;
+	private Runnable shrinkTask;
+	// Read budget, and what is left of it this pass. Only used by the thread servicing the connection.
+	private int readBudgetBytes = DEFAULT_READ_BUDGET;
+	private int readBudgetStrings = 0;
+	private int passBytes;
+	private int passStrings;
+	// Set while the event loop has this connection queued for another read pass.
+	boolean readRescheduled = false;
+	// Inbound rate limits, null for none. Only used by the thread servicing the connection.
+	private TokenBucket lineBucket;
+	private TokenBucket byteBucket;
+	// Set while reading waits for the buckets to refill. Changed under the write lock.
+	private boolean readThrottled = false;
+	private int throttlesInARow;
+	private long resumeTime = System.nanoTime() - ABUSE_WINDOW;
+	// Reused for every pause, so a client that is throttled all the time costs no allocation per read.
+	private TimingWheel.Timeout resumeTimeout;
+	// Set if this connection may be compressed, see setCompression().
+	private DeflateStream deflate;
+	// Set by the first Connection.close(), see claimClose().
+	private final AtomicBoolean closeClaimed = new AtomicBoolean();
 	
-	public SocketChannel socketChannel;
+	// Null once closed. Set to null under the write lock, so code holding it sees a stable value,
+	// everyone else reads it once into a local.
+	public volatile SocketChannel socketChannel;
 	
 	/**
-	 * Creates a TcpConnection.
+	 * Creates a TcpConnection. No buffers are allocated until the connection reads or writes.
 	 */
 	public TcpConnection() {
-		this.writeBuffer = ByteBuffer.allocate(2048);
-		this.charBuffer = CharBuffer.allocate(2048);
-		this.readBuffer = ByteBuffer.allocate(2048);
-		this.readBuffer.flip();
+	}
+	
+	/**
+	 * Sets the pool that read and write buffers are borrowed from.
+	 * @param bufferPool Pool to use.
+	 */
+	public void setBufferPool(BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
+	
+	/**
+	 * Sets the codec used to encode and decode strings. Must be called before the connection is used.
+	 * @param codec Codec to use.
+	 */
+	public void setCodec(StringCodec codec) {
+		this.codec = codec;
+		framer.setCodec(codec);
+	}
+	
+	/**
+	 * Sets how strings are framed in both directions. Must be called before the connection is used.
+	 * The codec, maximum line length and shrink delay already set carry over to the new framer.
+	 * @param framer Framer for this connection only.
+	 */
+	public void setFramer(Framer framer) {
+		framer.setCodec(codec);
+		framer.setMaxFrameLength(maxLineLength);
+		framer.setShrinkDelay(shrinkDelay);
+		this.framer = framer;
+	}
+	
+	/**
+	 * Returns the framer strings are framed with.
+	 * @return The framer.
+	 */
+	public Framer getFramer() {
+		return framer;
+	}
+	
+	/**
+	 * Lets the remote end turn on compression by sending StringServer.COMPRESSION_HANDSHAKE, which is
+	 * answered with the same line before everything after it is compressed. Must be called before the
+	 * connection is used.
+	 * While compressed, SlowConsumerPolicy.DROP_OLDEST drops the newest string instead, since later
+	 * compressed bytes may refer back to queued ones.
+	 * @param deflaterPool Pool to borrow the deflater from.
+	 * @param level Compression level from 1 to 9.
+	 */
+	public void setCompression(DeflaterPool deflaterPool, int level) {
+		deflate = new DeflateStream(deflaterPool, level);
+	}
+	
+	/**
+	 * Sends StringServer.COMPRESSION_HANDSHAKE and compresses everything sent afterwards. The remote end
+	 * must have compression enabled, once it answers with the same line everything it sends is
+	 * decompressed. Requires setCompression() and must be called before anything else is sent.
+	 * @param connection Connection to send across.
+	 * @throws IOException If the handshake could not be sent.
+	 */
+	public void requestCompression(Connection connection) throws IOException {
+		if(deflate == null) throw new IllegalStateException("Compression is not enabled.");
+		synchronized(writeLock) {
+			if(socketChannel == null) throw new SocketException("Connection is closed.");
+			write(connection, framer.encode(StringServer.COMPRESSION_HANDSHAKE + "\n"), false);
+			deflate.startDeflating();
+		}
+	}
+	
+	/**
+	 * Returns true if strings sent over this connection are compressed.
+	 * @return True if compressed.
+	 */
+	public boolean isCompressed() {
+		synchronized(writeLock) {
+			return deflate != null && deflate.isDeflating();
+		}
+	}
+	
+	/**
+	 * Sets the metrics that bytes and strings are counted in.
+	 * @param metrics Metrics to record to, or null to record nothing.
+	 */
+	public void setMetrics(StringServerMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * Sets the outbound watermarks. Once more than the high watermark is queued, the slow consumer policy
+	 * applies to every send until the queue drains to the low watermark.
+	 * @param lowWatermark Queued bytes at which the connection is writable again.
+	 * @param highWatermark Queued bytes past which the connection is not writable.
+	 */
+	public void setWriteWatermarks(int lowWatermark, int highWatermark) {
+		if(lowWatermark < 0 || highWatermark < lowWatermark)
+			throw new IllegalArgumentException("Watermarks must satisfy 0 <= low <= high.");
+		synchronized(writeLock) {
+			this.lowWatermark = lowWatermark;
+			this.highWatermark = highWatermark;
+		}
+	}
+	
+	/**
+	 * Sets what happens to strings sent while the connection is not writable.
+	 * @param slowConsumerPolicy Policy to apply.
+	 */
+	public void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+		if(slowConsumerPolicy == null) throw new IllegalArgumentException("Policy cannot be null.");
+		synchronized(writeLock) {
+			this.slowConsumerPolicy = slowConsumerPolicy;
+		}
+	}
+	
+	/**
+	 * Returns the number of bytes waiting to be written.
+	 * @return Queued bytes.
+	 */
+	public long getQueuedBytes() {
+		return queuedBytes;
+	}
+	
+	/**
+	 * Returns when bytes were last read from the socket.
+	 * @return Time from System.nanoTime().
+	 */
+	public long getLastReadTime() {
+		return lastReadTime;
+	}
+	
+	/**
+	 * Returns when bytes were last written to the socket.
+	 * @return Time from System.nanoTime().
+	 */
+	public long getLastWriteTime() {
+		return lastWriteTime;
+	}
+	
+	/**
+	 * Returns false while more than the high watermark is queued and the queue has not yet drained
+	 * to the low watermark.
+	 * @return True if writable.
+	 */
+	public boolean isWritable() {
+		return writable;
+	}
+	
+	/**
+	 * Sets the longest line or frame accepted from the remote end. Longer ones close the connection.
+	 * @param maxLineLength Maximum length in bytes, not counting the newline or length prefix.
+	 */
+	public void setMaxLineLength(int maxLineLength) {
+		this.maxLineLength = maxLineLength;
+		framer.setMaxFrameLength(maxLineLength);
+	}
+	
+	/**
+	 * Sets how much is read from the connection in one pass of its event loop. Once either limit is
+	 * reached the loop moves on to other connections and comes back on its next pass, so a busy
+	 * connection cannot hold up quiet ones. The limits are checked between reads, so a pass may go
+	 * over the byte limit by up to a buffer.
+	 * @param maxBytes Bytes read per pass, or 0 for no limit.
+	 * @param maxStrings Strings delivered per pass, or 0 for no limit.
+	 */
+	public void setReadBudget(int maxBytes, int maxStrings) {
+		this.readBudgetBytes = maxBytes;
+		this.readBudgetStrings = maxStrings;
+	}
+	
+	/**
+	 * Limits how fast the remote end may send. Once it runs out of tokens the connection is not read
+	 * until they refill, so TCP flow control pushes back on the sender instead of strings piling up
+	 * here. Up to a second's worth may arrive at once. Strings framed from bytes already read are
+	 * still delivered, and paid for out of later tokens. Must be called before the connection is used.
+	 * @param linesPerSecond Strings received per second, or 0 for no limit.
+	 * @param bytesPerSecond Bytes received per second, or 0 for no limit.
+	 */
+	public void setInboundRateLimit(int linesPerSecond, int bytesPerSecond) {
+		lineBucket = linesPerSecond > 0 ? new TokenBucket(linesPerSecond, linesPerSecond) : null;
+		byteBucket = bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond, bytesPerSecond) : null;
+	}
+	
+	/**
+	 * Starts a new read pass with the full read budget.
+	 */
+	void resetReadBudget() {
+		passBytes = 0;
+		passStrings = 0;
+	}
+	
+	/**
+	 * Returns true if this pass has used up the read budget.
+	 */
+	boolean isReadBudgetSpent() {
+		return (readBudgetBytes > 0 && passBytes >= readBudgetBytes)
+				|| (readBudgetStrings > 0 && passStrings >= readBudgetStrings);
+	}
+	
+	/**
+	 * Returns true if there may be something left to read: strings already framed, or bytes still
+	 * waiting in the socket.
+	 */
+	boolean mayHaveInput() {
+		return !readyStrings.isEmpty() || (socketChannel != null && !readSuspended && !readThrottled);
+	}
+	
+	/**
+	 * Sets how long the buffer grown for a long incoming string is kept after the last long string.
+	 * @param shrinkDelay Delay in milliseconds.
+	 */
+	public void setShrinkDelay(long shrinkDelay) {
+		this.shrinkDelay = shrinkDelay;
+		framer.setShrinkDelay(shrinkDelay);
+	}
+	
+	/**
+	 * Returns the codec used to encode and decode strings.
+	 * @return The codec.
+	 */
+	public StringCodec getCodec() {
+		return codec;
 	}
 	
 	/**
@@ -46,34 +332,150 @@ public class TcpConnection {
 	 * @throws IOException If string could not be read.
 	 */
 	public String readString(Connection connection) throws IOException {
-		boolean closed = (socketChannel == null);
-		int bytesRead = 0;
-		if(!closed) {
-			// Read bytes immediately available and add them to our buffer.
-			readBuffer.clear();
-			bytesRead = socketChannel.read(readBuffer);
-			readBuffer.flip();
+		// Hand out strings framed by an earlier read first.
+		String string = readyStrings.poll();
+		if(string != null) {
+			passStrings++;
+			return string;
 		}
+		SocketChannel socketChannel = this.socketChannel;
+		if(socketChannel == null || readSuspended || readThrottled) return null;
+		if(throttle(connection)) return null;
 		
-		if(bytesRead > 0) {
-			currentString += Charset.forName("US-ASCII").decode(readBuffer).toString();
+		// Read bytes immediately available into a borrowed buffer. A close from another thread
+		// meanwhile makes the read fail.
+		ByteBuffer readBuffer = bufferPool.acquire();
+		try {
+			int bytesRead = socketChannel.read(readBuffer);
+			readBuffer.flip();
+			if(bytesRead == -1) throw new SocketException("Connection is closed.");
+			if(bytesRead > 0) {
+				lastReadTime = System.nanoTime();
+				passBytes += bytesRead;
+				if(byteBucket != null) byteBucket.consume(bytesRead);
+			}
 			
-			// Split this by newlines and add to the queue all but the last one
-			String[] lines = currentString.split("\n");
-			if(lines.length > 1) {
-				for(int i=0; i < lines.length - 1; i++) {
-					readyStrings.add(lines[i].trim());
-				}
-				currentString = lines[lines.length - 1];
+			if(deflate != null && deflate.isInflating()) {
+				inflate(connection, readBuffer);
 			}
-			else if(lines.length == 1 && currentString.endsWith("\n")) {
-				readyStrings.add(lines[0].trim());
-				currentString = "";
+			else {
+				frame(connection, readBuffer);
 			}
+			if(metrics != null) metrics.bytesIn.add(bytesRead);
+			// A connection that goes quiet after a long string is checked again from the event loop.
+			if(framer.shrinkIfIdle()) scheduleShrink(connection);
+		} finally {
+			bufferPool.release(readBuffer);
 		}
 		
 		// Return a string from the queue, or null if the queue is empty.
-		return readyStrings.poll();
+		string = readyStrings.poll();
+		if(string != null) passStrings++;
+		return string;
+	}
+	
+	/**
+	 * Queues every complete string in the bytes, the framer copies out any trailing partial one.
+	 * A compression handshake switches the rest of the bytes over to the inflater.
+	 */
+	private void frame(Connection connection, ByteBuffer bytes) throws IOException {
+		String string;
+		while((string = framer.nextFrame(bytes)) != null) {
+			if(deflate != null && !deflate.isInflating() && string.trim().equals(StringServer.COMPRESSION_HANDSHAKE)) {
+				startCompression(connection);
+				inflate(connection, bytes);
+				return;
+			}
+			readyStrings.add(string);
+			if(metrics != null) metrics.messagesIn.increment();
+			if(lineBucket != null) lineBucket.consume(1);
+		}
+	}
+	
+	/**
+	 * Stops reading if the remote end has run out of tokens, until the buckets refill.
+	 * @return True if reading was stopped.
+	 */
+	private boolean throttle(final Connection connection) {
+		long wait = 0;
+		if(lineBucket != null) wait = lineBucket.nanosUntilAvailable(1);
+		if(byteBucket != null) wait = Math.max(wait, byteBucket.nanosUntilAvailable(1));
+		EventLoop eventLoop = connection.eventLoop;
+		if(wait == 0 || eventLoop == null) return false;
+		
+		synchronized(writeLock) {
+			readThrottled = true;
+			updateReadInterest();
+		}
+		if(metrics != null) metrics.throttles.increment();
+		if(resumeTimeout == null) {
+			resumeTimeout = new TimingWheel.Timeout(new Runnable() {
+				@Override
+				public void run() {
+					resumeTime = System.nanoTime();
+					synchronized(writeLock) {
+						readThrottled = false;
+						updateReadInterest();
+					}
+				}
+			});
+		}
+		// A resume already on its way is early enough, the next read throttles again if it is not.
+		eventLoop.schedule(resumeTimeout, wait);
+		
+		if(System.nanoTime() - resumeTime > ABUSE_WINDOW) throttlesInARow = 0;
+		if(++throttlesInARow >= ABUSE_THRESHOLD) {
+			throttlesInARow = 0;
+			connection.notifyRateLimited();
+		}
+		return true;
+	}
+	
+	/**
+	 * Checks again after the shrink delay whether the framer's grown buffer can be dropped, and keeps
+	 * checking for as long as it is held.
+	 */
+	private void scheduleShrink(final Connection connection) {
+		EventLoop eventLoop = connection.eventLoop;
+		if(shrinkScheduled || eventLoop == null) return;
+		if(shrinkTask == null) {
+			shrinkTask = new Runnable() {
+				@Override
+				public void run() {
+					shrinkScheduled = false;
+					if(socketChannel != null && framer.shrinkIfIdle()) scheduleShrink(connection);
+				}
+			};
+		}
+		shrinkScheduled = true;
+		eventLoop.schedule(shrinkTask, shrinkDelay * 1000000L);
+	}
+	
+	/**
+	 * Decompresses received bytes and frames the result.
+	 */
+	private void inflate(Connection connection, ByteBuffer compressed) throws IOException {
+		if(!compressed.hasRemaining()) return;
+		deflate.setInflaterInput(compressed);
+		ByteBuffer bytes;
+		while((bytes = deflate.inflate()) != null) {
+			frame(connection, bytes);
+		}
+	}
+	
+	/**
+	 * Answers the remote end's compression handshake, unless this end sent one first, and
+	 * decompresses everything received from now on.
+	 */
+	private void startCompression(Connection connection) throws IOException {
+		synchronized(writeLock) {
+			if(!deflate.isDeflating()) {
+				write(connection, framer.encode(StringServer.COMPRESSION_HANDSHAKE + "\n"), false);
+				deflate.startDeflating();
+			}
+		}
+		deflate.startInflating();
+		StringServer.printDbg(connection + " is now compressed.");
 	}
 	
 	/**
@@ -89,6 +491,7 @@ public class TcpConnection {
 			this.socketChannel.configureBlocking(false);
 			Socket socket = this.socketChannel.socket();
 			socket.setTcpNoDelay(true);
+			lastReadTime = lastWriteTime = System.nanoTime();
 			
 			selectionKey = socketChannel.register(selector, SelectionKey.OP_READ);
 			
@@ -102,16 +505,93 @@ public class TcpConnection {
 		}
 	}
 	
+	/**
+	 * Starts connecting to a remote end without blocking. Strings sent before the connection is
+	 * established are queued and written once it is.
+	 * @param socketChannel Unconnected socket channel to use.
+	 * @param address Address to connect to.
+	 * @throws IOException If the connection could not be started.
+	 */
+	public void connect(SocketChannel socketChannel, SocketAddress address) throws IOException {
+		try {
+			this.socketChannel = socketChannel;
+			this.socketChannel.configureBlocking(false);
+			socketChannel.socket().setTcpNoDelay(true);
+			connecting = true;
+			socketChannel.connect(address);
+		} catch(IOException e) {
+			close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Registers a connection started with connect() with a selector, to be told when it is established.
+	 * @param selector Selector to use.
+	 * @return SelectionKey for the connection.
+	 * @throws IOException If the channel could not be registered.
+	 */
+	public SelectionKey register(Selector selector) throws IOException {
+		try {
+			synchronized(writeLock) {
+				if(socketChannel == null) throw new SocketException("Connection is closed.");
+				selectionKey = socketChannel.register(selector, SelectionKey.OP_CONNECT);
+				return selectionKey;
+			}
+		} catch(IOException e) {
+			close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Completes a connection started with connect(). Called when the selector reports it as connectable.
+	 * @return True if the connection is established, false if it is still pending.
+	 * @throws IOException If the connection failed.
+	 */
+	public boolean finishConnect() throws IOException {
+		synchronized(writeLock) {
+			if(socketChannel == null) throw new SocketException("Connection is closed.");
+			if(!socketChannel.finishConnect()) return false;
+			connecting = false;
+			lastReadTime = lastWriteTime = System.nanoTime();
+			
+			writeInterest = !writeQueue.isEmpty();
+			int ops = readSuspended || readThrottled ? 0 : SelectionKey.OP_READ;
+			if(writeInterest) ops |= SelectionKey.OP_WRITE;
+			selectionKey.interestOps(ops);
+			
+			StringServer.printDbg("Port " + socketChannel.socket().getLocalPort() + " connected to: "
+					+ socketChannel.socket().getRemoteSocketAddress());
+			return true;
+		}
+	}
+	
+	/**
+	 * Returns true for the first caller only, so when several threads close the connection at once
+	 * exactly one of them tells the listener and the server or client.
+	 */
+	boolean claimClose() {
+		return closeClaimed.compareAndSet(false, true);
+	}
+	
 	/**
 	 * Closes the connection.
 	 */
 	public void close() {
+		SocketChannel socketChannel;
+		synchronized(writeLock) {
+			writeQueue.clear();
+			queuedBytes = 0;
+			if(deflate != null) deflate.end();
+			// Writers check the channel under the lock, so none of them is using it past this point.
+			socketChannel = this.socketChannel;
+			this.socketChannel = null;
+		}
+		if(socketChannel == null) return;
 		try {
-			if(socketChannel != null) {
-				socketChannel.close();
-				socketChannel = null;
-				if(selectionKey != null) selectionKey.selector().wakeup();
-			}
+			socketChannel.close();
+			if(selectionKey != null) selectionKey.selector().wakeup();
 		} catch(IOException e) {
 			StringServer.printDbg("Unable to close connection: " + e.getMessage());
 		}
@@ -119,24 +599,458 @@ public class TcpConnection {
 
 	/**
 	 * Send a string over a connection.
+	 * Whatever the socket will not take right away is queued and written once the selector reports
+	 * the connection as writable, so this never blocks. Once too much is queued the slow consumer
+	 * policy decides what happens.
+	 * Only the thread servicing the connection writes to the socket. Other threads queue the string,
+	 * and the first of a batch of sends hands the write to the connection's event loop.
 	 * @param connection Connection to send across.
 	 * @param string String to send.
-	 * @return Number of bytes sent.
+	 * @return Number of bytes sent or queued, 0 if the string was dropped.
+	 * @throws IOException If the connection is closed, or the policy is to disconnect.
 	 */
 	public int send(Connection connection, String string) throws IOException {
 		if(socketChannel == null) throw new SocketException("Connection is closed.");
-		synchronized(writeLock) {
-			writeBuffer.clear();
-			charBuffer.clear();
-			
-			// Put the string in the buffer.
-			charBuffer.put(string);
-			charBuffer.flip();
-			charEncoder.encode(charBuffer, writeBuffer, true);
-			charEncoder.reset();
+		EventLoop eventLoop = connection.eventLoop;
+		if(eventLoop != null && !eventLoop.inEventLoop()) {
+			// Other threads always queue, so encode once into a buffer that can be queued as-is.
+			return send(connection, framer.encode(string));
+		}
+		
+		// The socket usually takes the whole string, so only a leftover is copied out of the pooled buffer.
+		ByteBuffer writeBuffer = bufferPool.acquire();
+		try {
+			if(!framer.encode(string, writeBuffer)) {
+				// Too big for a pooled buffer, encode it into one of its own that fits.
+				return send(connection, framer.encode(string));
+			}
 			writeBuffer.flip();
 			
-			return socketChannel.write(writeBuffer);
+			synchronized(writeLock) {
+				if(deflate != null && deflate.isDeflating()) return write(connection, deflate.deflate(writeBuffer), false);
+				return write(connection, writeBuffer, true);
+			}
+		} finally {
+			bufferPool.release(writeBuffer);
+			fireWritabilityChanged(connection);
+		}
+	}
+	
+	/**
+	 * Send bytes that have already been encoded and framed.
+	 * The buffer is queued as-is if the socket will not take all of it, so callers sharing one encoded
+	 * string between connections must pass each connection its own duplicate.
+	 * @param connection Connection to send across.
+	 * @param buffer Encoded string, positioned at the first byte to send.
+	 * @return Number of bytes sent or queued, 0 if the string was dropped.
+	 * @throws IOException If the connection is closed, or the policy is to disconnect.
+	 */
+	public int send(Connection connection, ByteBuffer buffer) throws IOException {
+		if(socketChannel == null) throw new SocketException("Connection is closed.");
+		try {
+			synchronized(writeLock) {
+				if(deflate != null && deflate.isDeflating()) buffer = deflate.deflate(buffer);
+				return write(connection, buffer, false);
+			}
+		} finally {
+			fireWritabilityChanged(connection);
+		}
+	}
+	
+	/**
+	 * Send a broadcast string that has already been encoded and framed once for every recipient.
+	 * A compressed connection is sent the frame's shared compressed copy.
+	 * @param connection Connection to send across.
+	 * @param frame Shared frame, left untouched.
+	 * @return Number of bytes sent or queued, 0 if the string was dropped.
+	 * @throws IOException If the connection is closed, or the policy is to disconnect.
+	 */
+	int send(Connection connection, SharedFrame frame) throws IOException {
+		if(socketChannel == null) throw new SocketException("Connection is closed.");
+		try {
+			synchronized(writeLock) {
+				if(deflate != null && deflate.isDeflating()) {
+					// The shared copy was compressed without this connection's history, so start over after it.
+					deflate.discardHistory();
+					return write(connection, frame.deflated().duplicate(), false);
+				}
+				return write(connection, frame.encoded.duplicate(), false);
+			}
+		} finally {
+			fireWritabilityChanged(connection);
+		}
+	}
+	
+	/**
+	 * Send a batch of strings over a connection with a single gathering write.
+	 * @param connection Connection to send across.
+	 * @param strings Strings to send, in order.
+	 * @return Number of bytes sent or queued, not counting strings that were dropped.
+	 * @throws IOException If the connection is closed, or the policy is to disconnect.
+	 */
+	public int send(Connection connection, Collection<String> strings) throws IOException {
+		if(socketChannel == null) throw new SocketException("Connection is closed.");
+		
+		// Encode outside the lock, each string into a buffer that can be queued as-is.
+		ByteBuffer[] buffers = new ByteBuffer[strings.size()];
+		int i = 0;
+		for(String string : strings) {
+			buffers[i++] = framer.encode(string);
+		}
+		
+		try {
+			synchronized(writeLock) {
+				if(deflate != null && deflate.isDeflating()) {
+					for(int j = 0; j < buffers.length; j++) buffers[j] = deflate.deflate(buffers[j]);
+				}
+				
+				SocketChannel socketChannel = this.socketChannel;
+				if(socketChannel == null) throw new SocketException("Connection is closed.");
+				int length = 0;
+				int first = 0;
+				if(canWriteNow(connection)) {
+					// Nothing queued ahead of us, so try to write it all at once.
+					for(ByteBuffer buffer : buffers) length += buffer.remaining();
+					long written = socketChannel.write(buffers);
+					if(written > 0) lastWriteTime = System.nanoTime();
+					if(metrics != null) metrics.bytesOut.add(written);
+					while(first < buffers.length && !buffers[first].hasRemaining()) first++;
+					if(first == buffers.length) {
+						if(metrics != null) metrics.messagesOut.add(buffers.length);
+						return length;
+					}
+					
+					if(metrics != null) metrics.messagesOut.add(first);
+					
+					// A string the socket took part of must be finished to keep the stream intact.
+					if(buffers[first].position() > 0) {
+						if(metrics != null) metrics.messagesOut.increment();
+						enqueue(connection, buffers[first]);
+						first++;
+					}
+					for(int j = first; j < buffers.length; j++) length -= buffers[j].remaining();
+				}
+				for(int j = first; j < buffers.length; j++) {
+					int bufferLength = buffers[j].remaining();
+					if(admit(connection, bufferLength)) {
+						enqueue(connection, buffers[j]);
+						length += bufferLength;
+						if(metrics != null) metrics.messagesOut.increment();
+					}
+					else if(deflate != null) {
+						deflate.discardHistory();
+					}
+				}
+				return length;
+			}
+		} finally {
+			fireWritabilityChanged(connection);
+		}
+	}
+	
+	/**
+	 * Writes a string if nothing is queued ahead of it and queues whatever the socket did not take.
+	 * Must be called while holding the write lock.
+	 * @param message Encoded string.
+	 * @param copy True if the buffer is borrowed and its contents must be copied before queuing.
+	 * @return Number of bytes sent or queued, 0 if the string was dropped.
+	 */
+	private int write(Connection connection, ByteBuffer message, boolean copy) throws IOException {
+		SocketChannel socketChannel = this.socketChannel;
+		if(socketChannel == null) throw new SocketException("Connection is closed.");
+		int length = message.remaining();
+		
+		// Only write directly if nothing is queued ahead of us, otherwise ordering would break.
+		if(canWriteNow(connection)) {
+			int written = socketChannel.write(message);
+			if(written > 0) lastWriteTime = System.nanoTime();
+			if(metrics != null) {
+				metrics.bytesOut.add(written);
+				metrics.messagesOut.increment();
+			}
+			// Part of it is already on the wire, so the rest has to go out whatever the policy says.
+			if(message.hasRemaining()) enqueue(connection, copy ? copyOf(message) : message);
+			return length;
+		}
+		
+		if(!admit(connection, length)) {
+			// Anything compressed after a dropped string must not refer back to it.
+			if(deflate != null) deflate.discardHistory();
+			return 0;
+		}
+		enqueue(connection, copy ? copyOf(message) : message);
+		if(metrics != null) metrics.messagesOut.increment();
+		return length;
+	}
+	
+	/**
+	 * Returns true if a string can go straight to the socket: nothing is queued ahead of it and this
+	 * is the thread servicing the connection. Must be called while holding the write lock.
+	 */
+	private boolean canWriteNow(Connection connection) {
+		if(!writeQueue.isEmpty() || connecting) return false;
+		EventLoop eventLoop = connection.eventLoop;
+		return eventLoop == null || eventLoop.inEventLoop();
+	}
+	
+	/**
+	 * Applies the slow consumer policy to a string that would be queued behind others.
+	 * Must be called while holding the write lock.
+	 * @param length Number of bytes that would be queued.
+	 * @return True if the string should be queued, false if it is dropped.
+	 * @throws IOException If the policy is to disconnect.
+	 */
+	private boolean admit(Connection connection, int length) throws IOException {
+		if(writable && queuedBytes + length <= highWatermark) return true;
+		
+		switch(slowConsumerPolicy) {
+			case DROP_NEWEST:
+				setWritable(false);
+				return false;
+			case DROP_OLDEST:
+				if(deflate != null && deflate.isDeflating()) {
+					// Queued compressed strings cannot be taken out of the stream.
+					setWritable(false);
+					return false;
+				}
+				// Keep the head, it may be partially written.
+				ByteBuffer head = writeQueue.poll();
+				while(!writeQueue.isEmpty() && queuedBytes + length > highWatermark) {
+					queuedBytes -= writeQueue.poll().remaining();
+				}
+				if(head != null) writeQueue.addFirst(head);
+				setWritable(false);
+				return true;
+			case DISCONNECT:
+				throw new IOException("Slow consumer, " + queuedBytes + " bytes queued.");
+			default:
+				setWritable(false);
+				return true;
+		}
+	}
+	
+	/**
+	 * Adds a buffer to the write queue. Must be called while holding the write lock.
+	 * @param buffer Buffer to queue, which must not be modified by anyone else.
+	 */
+	private void enqueue(Connection connection, ByteBuffer buffer) {
+		writeQueue.add(buffer);
+		queuedBytes += buffer.remaining();
+		if(queuedBytes > highWatermark) setWritable(false);
+		requestFlush(connection);
+	}
+	
+	/**
+	 * Makes sure queued data gets written. On the thread servicing the connection that means waiting
+	 * for OP_WRITE. Other threads hand the write to the connection's event loop instead, once for a
+	 * whole batch of sends, so the loop is woken up once and writes the batch with one gathering write.
+	 * Must be called while holding the write lock.
+	 */
+	private void requestFlush(final Connection connection) {
+		// finishConnect() asks for OP_WRITE once the connection is established.
+		if(connecting || writeInterest || flushScheduled) return;
+		
+		EventLoop eventLoop = connection.eventLoop;
+		if(eventLoop == null || eventLoop.inEventLoop()) {
+			setWriteInterest(true);
+			return;
+		}
+		
+		if(flushTask == null) {
+			flushTask = new Runnable() {
+				@Override
+				public void run() {
+					flush(connection);
+				}
+			};
+		}
+		flushScheduled = true;
+		eventLoop.execute(flushTask);
+	}
+	
+	/**
+	 * Writes what other threads queued. Runs on the connection's event loop.
+	 */
+	private void flush(Connection connection) {
+		try {
+			synchronized(writeLock) {
+				flushScheduled = false;
+				if(!writeQueued(connection)) setWriteInterest(true);
+			}
+		} catch(IOException e) {
+			StringServer.printDbg(connection + " unable to write: " + e.getMessage());
+			connection.close();
+		}
+		fireWritabilityChanged(connection);
+	}
+	
+	private static ByteBuffer copyOf(ByteBuffer buffer) {
+		ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+		copy.put(buffer);
+		copy.flip();
+		return copy;
+	}
+	
+	/**
+	 * Records a change in writability. Must be called while holding the write lock, the listener is
+	 * told by fireWritabilityChanged() once the lock has been released.
+	 */
+	private void setWritable(boolean writable) {
+		this.writable = writable;
+	}
+	
+	/**
+	 * Tells the listener about changes in writability recorded by setWritable(). Must be called without
+	 * the write lock held, so a listener that sends to other connections cannot deadlock with one that
+	 * sends to this one. Only one thread tells the listener at a time, and it keeps going until the
+	 * listener has caught up, so changes are reported in order and the last one reported is the current one.
+	 */
+	private void fireWritabilityChanged(Connection connection) {
+		while(true) {
+			boolean writable;
+			synchronized(writeLock) {
+				if(notifyingWritable || this.writable == notifiedWritable) return;
+				notifyingWritable = true;
+				writable = notifiedWritable = this.writable;
+			}
+			try {
+				connection.notifyWritabilityChanged(writable);
+			} finally {
+				synchronized(writeLock) {
+					notifyingWritable = false;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Writes as much queued data as the socket will take. Called by the server when the selector
+	 * reports the connection as writable.
+	 * @param connection Connection to write to.
+	 * @return True if the queue has been drained, false if data is still pending.
+	 * @throws IOException If the queued data could not be written.
+	 */
+	public boolean writeOperation(Connection connection) throws IOException {
+		try {
+			synchronized(writeLock) {
+				return writeQueued(connection);
+			}
+		} finally {
+			fireWritabilityChanged(connection);
+		}
+	}
+	
+	/**
+	 * Writes as much queued data as the socket will take. Must be called while holding the write lock.
+	 */
+	private boolean writeQueued(Connection connection) throws IOException {
+		SocketChannel socketChannel = this.socketChannel;
+		if(socketChannel == null) return true;
+		
+		try {
+			while(!writeQueue.isEmpty()) {
+				// Hand the socket everything queued in one gathering write.
+				ByteBuffer[] buffers = writeQueue.toArray(new ByteBuffer[writeQueue.size()]);
+				long written = socketChannel.write(buffers);
+				if(written > 0) lastWriteTime = System.nanoTime();
+				queuedBytes -= written;
+				if(metrics != null) metrics.bytesOut.add(written);
+				while(!writeQueue.isEmpty() && !writeQueue.peek().hasRemaining()) {
+					writeQueue.poll();
+				}
+				if(written == 0) return false;
+			}
+		} finally {
+			if(queuedBytes <= lowWatermark) setWritable(true);
+		}
+		
+		setWriteInterest(false);
+		return true;
+	}
+	
+	/**
+	 * Returns true if there is data waiting to be written.
+	 * @return True if the write queue is not empty.
+	 */
+	public boolean isWritePending() {
+		synchronized(writeLock) {
+			return !writeQueue.isEmpty();
+		}
+	}
+	
+	/**
+	 * Stops or resumes reading from the socket. While suspended, readString() only returns strings
+	 * that were already framed, and the selector stops reporting the connection as readable.
+	 * May be called from any thread.
+	 * @param suspended True to stop reading.
+	 */
+	public void setReadSuspended(boolean suspended) {
+		synchronized(writeLock) {
+			if(readSuspended == suspended) return;
+			readSuspended = suspended;
+			updateReadInterest();
+		}
+	}
+	
+	/**
+	 * Turns OP_READ interest on unless reading is suspended or throttled, and off otherwise.
+	 * Must be called while holding the write lock.
+	 */
+	private void updateReadInterest() {
+		if(selectionKey == null || connecting) return;
+		try {
+			int ops = selectionKey.interestOps();
+			if(readSuspended || readThrottled) {
+				selectionKey.interestOps(ops & ~SelectionKey.OP_READ);
+			}
+			else if((ops & SelectionKey.OP_READ) == 0) {
+				// The read idle timeout starts over from when reading resumes.
+				lastReadTime = System.nanoTime();
+				selectionKey.interestOps(ops | SelectionKey.OP_READ);
+				// The selector may be blocked in select() on another thread.
+				selectionKey.selector().wakeup();
+			}
+		} catch(CancelledKeyException ignored) {
+			// Connection is closed.
+		}
+	}
+	
+	/**
+	 * Returns true if reading is held back, either suspended or throttled by the inbound rate limit.
+	 */
+	boolean isReadPaused() {
+		synchronized(writeLock) {
+			return readSuspended || readThrottled;
+		}
+	}
+	
+	/**
+	 * Returns true if reading from the socket is suspended.
+	 * @return True if suspended.
+	 */
+	public boolean isReadSuspended() {
+		return readSuspended;
+	}
+	
+	/**
+	 * Turns OP_WRITE interest on or off. Must be called while holding the write lock, on the thread
+	 * servicing the connection, so the selector is never blocked in select() meanwhile.
+	 * @param write True to be notified when the connection becomes writable.
+	 */
+	private void setWriteInterest(boolean write) {
+		// finishConnect() sets the interest once a pending connection is established.
+		if(selectionKey == null || connecting || writeInterest == write) return;
+		writeInterest = write;
+		try {
+			int ops = selectionKey.interestOps();
+			if(write) {
+				selectionKey.interestOps(ops | SelectionKey.OP_WRITE);
+			}
+			else {
+				selectionKey.interestOps(ops & ~SelectionKey.OP_WRITE);
+			}
+		} catch(CancelledKeyException ignored) {
+			// Connection is closed.
 		}
 	}
 }
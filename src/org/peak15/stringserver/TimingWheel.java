@@ -0,0 +1,154 @@
+package org.peak15.stringserver;
+
+/**
+ * A hashed timing wheel for timeouts that are checked far more often than they fire, such as idle
+ * connections. Time is divided into ticks, and each task is kept in the slot its deadline hashes to,
+ * so scheduling a task and expiring it are both O(1) no matter how many tasks are waiting. Deadlines
+ * are rounded up to the next tick.
+ *
+ * Not thread safe. Each event loop has its own wheel, used only from the loop's thread.
+ */
+public class TimingWheel {
+	private final long tickNanos;
+	private final Timeout[] slots;
+	private final int mask;
+	private final long startTime;
+	private long currentTick = 0;
+	private int size = 0;
+
+	/**
+	 * A task that can be scheduled again and again, once at a time, without allocating anything.
+	 * While scheduled it is linked to the other tasks in its slot.
+	 */
+	public static class Timeout {
+		final Runnable task;
+		long deadlineTick;
+		boolean scheduled;
+		Timeout next;
+
+		/**
+		 * Creates a timeout that is not scheduled yet.
+		 * @param task Task to run each time the timeout expires.
+		 */
+		public Timeout(Runnable task) {
+			this.task = task;
+		}
+
+		/**
+		 * Returns true from when the timeout is scheduled until just before its task runs.
+		 * @return True if scheduled.
+		 */
+		public boolean isScheduled() {
+			return scheduled;
+		}
+	}
+
+	/**
+	 * Creates a timing wheel.
+	 * @param tickMillis Length of a tick in milliseconds, the precision of every deadline.
+	 * @param slotCount Number of slots, rounded up to a power of two. Deadlines further away than one
+	 * 		turn of the wheel stay in their slot for several turns.
+	 */
+	public TimingWheel(long tickMillis, int slotCount) {
+		if(tickMillis < 1) throw new IllegalArgumentException("Tick must be at least 1 millisecond.");
+		if(slotCount < 1) throw new IllegalArgumentException("Slot count must be at least 1.");
+		this.tickNanos = tickMillis * 1000000L;
+		int capacity = 1;
+		while(capacity < slotCount) capacity <<= 1;
+		this.slots = new Timeout[capacity];
+		this.mask = slots.length - 1;
+		this.startTime = System.nanoTime();
+	}
+
+	/**
+	 * Runs a task once the delay has passed. There is no way to cancel a task, so a task whose
+	 * reason to run has gone away should check that itself and do nothing.
+	 * @param task Task to run from advance().
+	 * @param delayNanos Delay in nanoseconds.
+	 */
+	public void schedule(Runnable task, long delayNanos) {
+		schedule(new Timeout(task), delayNanos);
+	}
+
+	/**
+	 * Runs a timeout's task once the delay has passed, unless it is already scheduled.
+	 * @param timeout Timeout to schedule.
+	 * @param delayNanos Delay in nanoseconds.
+	 * @return True if scheduled, false if it already was, in which case its deadline is left as it was.
+	 */
+	public boolean schedule(Timeout timeout, long delayNanos) {
+		if(timeout.scheduled) return false;
+		long deadline = System.nanoTime() - startTime + Math.max(0, delayNanos);
+		timeout.deadlineTick = Math.max(currentTick + 1, (deadline + tickNanos - 1) / tickNanos);
+		timeout.scheduled = true;
+		int slot = (int) (timeout.deadlineTick & mask);
+		timeout.next = slots[slot];
+		slots[slot] = timeout;
+		size++;
+		return true;
+	}
+
+	/**
+	 * Runs every task whose deadline has passed. Tasks may schedule further tasks.
+	 * @param now Current time from System.nanoTime().
+	 */
+	public void advance(long now) {
+		long targetTick = (now - startTime) / tickNanos;
+		if(targetTick <= currentTick) return;
+
+		// Past one full turn every slot is visited anyway.
+		long steps = Math.min(targetTick - currentTick, slots.length);
+		Timeout expired = null;
+		for(long tick = currentTick + 1; tick <= currentTick + steps; tick++) {
+			int slot = (int) (tick & mask);
+			Timeout previous = null;
+			Timeout timeout = slots[slot];
+			while(timeout != null) {
+				Timeout next = timeout.next;
+				if(timeout.deadlineTick <= targetTick) {
+					// Unlink it now and run it once every slot is done.
+					if(previous == null) slots[slot] = next;
+					else previous.next = next;
+					timeout.next = expired;
+					expired = timeout;
+					size--;
+				}
+				else {
+					previous = timeout;
+				}
+				timeout = next;
+			}
+		}
+		currentTick = targetTick;
+
+		while(expired != null) {
+			Timeout timeout = expired;
+			expired = timeout.next;
+			timeout.next = null;
+			// The task may schedule its own timeout again.
+			timeout.scheduled = false;
+			try {
+				timeout.task.run();
+			} catch(RuntimeException e) {
+				StringServer.printErr("Timed task threw: " + e);
+			}
+		}
+	}
+
+	/**
+	 * Returns how long until the next tick, for bounding how long the event loop may block.
+	 * @param now Current time from System.nanoTime().
+	 * @return Nanoseconds until the next tick, at least 0.
+	 */
+	public long nanosUntilNextTick(long now) {
+		return Math.max(0, startTime + (currentTick + 1) * tickNanos - now);
+	}
+
+	/**
+	 * Returns the number of tasks waiting to run.
+	 * @return Number of tasks.
+	 */
+	public int size() {
+		return size;
+	}
+}
@@ -0,0 +1,78 @@
+package org.peak15.stringserver;
+
+/**
+ * A token bucket rate limiter. Tokens drip in at a fixed rate up to the bucket's capacity, and each
+ * unit of work takes tokens out, so short bursts up to the capacity go through while the long run
+ * average is held to the rate. Refilling is worked out from the clock when tokens are asked for,
+ * so an idle bucket costs nothing.
+ *
+ * Not thread safe.
+ */
+public class TokenBucket {
+	private final double tokensPerNano;
+	private final double capacity;
+	private double tokens;
+	private long lastRefill;
+
+	/**
+	 * Creates a full token bucket.
+	 * @param ratePerSecond Tokens added per second.
+	 * @param capacity Most tokens the bucket holds, the largest burst allowed.
+	 */
+	public TokenBucket(double ratePerSecond, double capacity) {
+		if(ratePerSecond <= 0) throw new IllegalArgumentException("Rate must be positive.");
+		if(capacity < 1) throw new IllegalArgumentException("Capacity must be at least 1.");
+		this.tokensPerNano = ratePerSecond / 1e9;
+		this.capacity = capacity;
+		this.tokens = capacity;
+		this.lastRefill = System.nanoTime();
+	}
+
+	/**
+	 * Takes tokens out of the bucket if it holds enough of them.
+	 * @param amount Number of tokens to take.
+	 * @return True if the tokens were taken, false if there were not enough and none were taken.
+	 */
+	public boolean tryAcquire(double amount) {
+		refill(System.nanoTime());
+		if(tokens < amount) return false;
+		tokens -= amount;
+		return true;
+	}
+
+	/**
+	 * Takes tokens out of the bucket whether or not it holds enough, leaving it in debt that has to
+	 * be paid back before it holds any tokens again. For work that has already been done, such as
+	 * bytes that have already been read.
+	 * @param amount Number of tokens to take.
+	 */
+	public void consume(double amount) {
+		refill(System.nanoTime());
+		tokens -= amount;
+	}
+
+	/**
+	 * Returns how long until the bucket holds the given number of tokens.
+	 * @param amount Number of tokens wanted, no more than the capacity.
+	 * @return Nanoseconds to wait, 0 if the tokens are already there.
+	 */
+	public long nanosUntilAvailable(double amount) {
+		refill(System.nanoTime());
+		if(tokens >= amount) return 0;
+		return (long) Math.ceil((amount - tokens) / tokensPerNano);
+	}
+
+	/**
+	 * Returns the number of tokens in the bucket, negative while it is in debt.
+	 * @return Tokens available.
+	 */
+	public double getTokens() {
+		refill(System.nanoTime());
+		return tokens;
+	}
+
+	private void refill(long now) {
+		tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+		lastRefill = now;
+	}
+}
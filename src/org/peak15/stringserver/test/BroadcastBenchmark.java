@@ -0,0 +1,151 @@
+package org.peak15.stringserver.test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.peak15.stringserver.Connection;
+import org.peak15.stringserver.Listener;
+import org.peak15.stringserver.StringServer;
+
+/**
+ * Measures broadcast throughput over loopback.
+ *
+ * For each connection count, opens that many clients, then compares sendToAll(), which encodes each
+ * message once, against calling Connection.send() for every connection, which encodes it per connection.
+ * Reports the bytes per second delivered to the clients.
+ *
+ * Usage: BroadcastBenchmark [connections...] (default: 1000 10000)
+ * Large connection counts need a file descriptor limit of at least twice the count.
+ */
+public class BroadcastBenchmark {
+	private static final int PORT = 1337;
+	private static final int MESSAGE_SIZE = 100;
+	private static final long BYTES_PER_RUN = 64L * 1024 * 1024;
+
+	private static final AtomicLong bytesReceived = new AtomicLong();
+	private static volatile boolean draining;
+
+	public static void main(String[] args) throws Exception {
+		int[] counts = {1000, 10000};
+		if(args.length > 0) {
+			counts = new int[args.length];
+			for(int i = 0; i < args.length; i++) counts[i] = Integer.parseInt(args[i]);
+		}
+
+		StringBuilder builder = new StringBuilder();
+		while(builder.length() < MESSAGE_SIZE - 1) builder.append('x');
+		builder.append('\n');
+		String message = builder.toString();
+
+		for(int count : counts) {
+			run(count, message);
+		}
+	}
+
+	private static void run(int count, String message) throws Exception {
+		final StringServer server = new StringServer(new Listener() {
+			@Override
+			public void connected(Connection connection) {}
+
+			@Override
+			public void disconnected(Connection connection) {}
+
+			@Override
+			public void received(Connection connection, String string) {}
+		});
+		server.start();
+		server.bind(PORT);
+
+		// Connect every client, then drain them all from one thread.
+		final Selector selector = Selector.open();
+		List<SocketChannel> clients = new ArrayList<SocketChannel>(count);
+		for(int i = 0; i < count; i++) {
+			SocketChannel sc = SocketChannel.open(new InetSocketAddress("localhost", PORT));
+			sc.configureBlocking(false);
+			sc.register(selector, SelectionKey.OP_READ);
+			clients.add(sc);
+		}
+		while(server.getConnections().size() < count) Thread.sleep(10);
+
+		draining = true;
+		Thread drain = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+				try {
+					while(draining) {
+						selector.select(100);
+						Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+						while(iter.hasNext()) {
+							SelectionKey key = iter.next();
+							iter.remove();
+							int read;
+							do {
+								buffer.clear();
+								read = ((SocketChannel) key.channel()).read(buffer);
+								if(read > 0) bytesReceived.addAndGet(read);
+							} while(read > 0);
+						}
+					}
+				} catch(IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}, "Benchmark Drain");
+		drain.start();
+
+		int messages = (int) Math.max(10, BYTES_PER_RUN / ((long) count * message.length()));
+
+		// Warm up both paths before measuring.
+		measure(server, count, message, messages / 10, true);
+		measure(server, count, message, messages / 10, false);
+
+		double perConnection = measure(server, count, message, messages, false);
+		double encodeOnce = measure(server, count, message, messages, true);
+
+		System.out.println(count + " connections, " + messages + " messages of " + message.length() + " bytes:");
+		System.out.printf("  Connection.send per connection: %,.0f bytes/sec%n", perConnection);
+		System.out.printf("  sendToAll (encode once):        %,.0f bytes/sec%n", encodeOnce);
+
+		draining = false;
+		drain.join();
+		for(SocketChannel sc : clients) sc.close();
+		selector.close();
+		server.stop();
+		Thread.sleep(500);
+	}
+
+	/**
+	 * Sends the message the given number of times and waits for every byte to arrive.
+	 * @return Bytes per second delivered to the clients.
+	 */
+	private static double measure(StringServer server, int count, String message, int messages, boolean broadcast)
+			throws InterruptedException {
+		long expected = (long) count * messages * message.length();
+		bytesReceived.set(0);
+
+		long start = System.nanoTime();
+		for(int i = 0; i < messages; i++) {
+			if(broadcast) {
+				server.sendToAll(message);
+			}
+			else {
+				for(Connection c : server.getConnections()) {
+					c.send(message);
+				}
+			}
+		}
+		while(bytesReceived.get() < expected) Thread.sleep(1);
+		long elapsed = System.nanoTime() - start;
+
+		return expected / (elapsed / 1e9);
+	}
+}
@@ -0,0 +1,88 @@
+package org.peak15.stringserver.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.peak15.stringserver.CommandRouter;
+import org.peak15.stringserver.Connection;
+
+/**
+ * Test plan:
+ * Register overlapping prefixes and keywords, then route strings through received() and check
+ * which handler each one reached.
+ *
+ * Longest match wins: "PINGALL x" goes to the PINGALL prefix, not the P prefix.
+ * Keywords only match a whole first word: "PING" and "PING x" go to the PING keyword, "PINGX" does not.
+ * A keyword beats a prefix of the same length: "GET" goes to the GET keyword, "GET /a" to the "GET /" prefix.
+ * Unknown commands go to the fallback handler, or nowhere without one.
+ *
+ */
+public class CommandRouterTest {
+	private static final List<String> handled = new ArrayList<String>();
+
+	public static void main(String[] args) {
+		CommandRouter router = new CommandRouter();
+		router.addPrefix("P", handler("p"));
+		router.addKeyword("PING", handler("ping"));
+		router.addPrefix("PINGALL", handler("pingall"));
+		router.addPrefix("GET /", handler("get /"));
+		router.addKeyword("GET", handler("get"));
+		for(int i = 0; i < 50; i++) router.addKeyword("CMD" + i, handler("cmd" + i));
+
+		boolean routing = check(router, "PING", "ping")
+				& check(router, "PING x", "ping")
+				& check(router, "PING\tx", "ping")
+				& check(router, "PINGX", "p")
+				& check(router, "PIN", "p")
+				& check(router, "PINGALL x", "pingall")
+				& check(router, "GET", "get")
+				& check(router, "GET x", "get")
+				& check(router, "GET /a", "get /")
+				& check(router, "CMD3 x", "cmd3")
+				& check(router, "CMD37 x", "cmd37");
+
+		// Nothing matches, and there is no fallback yet.
+		boolean unknown = check(router, "xyz", null)
+				& check(router, "", null)
+				& check(router, "G", null);
+
+		router.setFallback(handler("fallback"));
+		boolean fallback = check(router, "xyz", "fallback")
+				& check(router, "", "fallback")
+				& check(router, "GE", "fallback")
+				& check(router, "PING", "ping");
+
+		// Registering a command again replaces its handler.
+		router.addKeyword("PING", handler("ping2"));
+		boolean replaced = check(router, "PING", "ping2");
+
+		if(routing && unknown && fallback && replaced) {
+			System.out.println("\nTest passed!");
+		}
+		else {
+			System.err.println("\nTest failed!");
+			System.exit(1);
+		}
+	}
+
+	private static CommandRouter.Handler handler(final String name) {
+		return new CommandRouter.Handler() {
+			@Override
+			public void handle(Connection connection, String string) {
+				handled.add(name);
+			}
+		};
+	}
+
+	/**
+	 * Routes a string and checks which handler got it, null for none.
+	 */
+	private static boolean check(CommandRouter router, String string, String expected) {
+		handled.clear();
+		router.received(new Connection(null), string);
+		String actual = handled.isEmpty() ? null : handled.get(0);
+		boolean passed = handled.size() <= 1 && (expected == null ? actual == null : expected.equals(actual));
+		System.out.println((passed ? "ok     " : "FAILED ") + "\"" + string + "\" -> " + actual);
+		return passed;
+	}
+}
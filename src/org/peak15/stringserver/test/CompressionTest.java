@@ -0,0 +1,185 @@
+package org.peak15.stringserver.test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.peak15.stringserver.Connection;
+import org.peak15.stringserver.Listener;
+import org.peak15.stringserver.StringClient;
+import org.peak15.stringserver.StringServer;
+
+/**
+ * Test plan:
+ * A server that allows compression, one client that asks for it with two connections, and one client
+ * that does not.
+ *
+ * Compressed Clients				Plain Client
+ * Connect, handshake				Connect
+ * Send strings to the server
+ *
+ * The server then interleaves broadcasts, which are compressed once and spliced into every
+ * compressed stream, with strings sent to each connection alone, which use the connection's own
+ * deflater and have to start over after every broadcast.
+ *
+ * Verify that every connection receives exactly its strings in order, that the server receives the
+ * compressed clients' strings, and that the compressed connections really are compressed.
+ *
+ */
+public class CompressionTest {
+	private static final int STRINGS = 200;
+
+	private static final Map<Connection, List<String>> received = new ConcurrentHashMap<Connection, List<String>>();
+
+	private static Listener collector = new Listener() {
+		@Override
+		public void connected(Connection connection) {
+			received.put(connection, Collections.synchronizedList(new ArrayList<String>()));
+		}
+
+		@Override
+		public void disconnected(Connection connection) {
+		}
+
+		@Override
+		public void received(Connection connection, String string) {
+			received.get(connection).add(string);
+		}
+	};
+
+	public static void main(String[] args) throws Exception {
+		StringServer server = new StringServer(collector);
+		server.setCompressionLevel(6);
+		server.setMetricsName("CompressionTest");
+		server.start();
+		InetSocketAddress address = server.bind(new InetSocketAddress("127.0.0.1", 0));
+
+		StringClient compressed = new StringClient(collector);
+		compressed.setCompressionLevel(6);
+		compressed.start();
+		StringClient plain = new StringClient(collector);
+		plain.start();
+
+		List<Connection> clients = new ArrayList<Connection>();
+		clients.add(compressed.connect(address));
+		clients.add(compressed.connect(address));
+		clients.add(plain.connect(address));
+
+		// Wait for the handshakes.
+		long deadline = System.currentTimeMillis() + 5000;
+		while(countCompressed(server) < 2 || server.getConnections().size() < 3) {
+			if(System.currentTimeMillis() > deadline) fail("Compression was not negotiated.");
+			Thread.sleep(10);
+		}
+
+		for(int i = 0; i < STRINGS; i++) {
+			clients.get(0).send(line("From the first client", i));
+			clients.get(1).send(line("From the second client", i));
+		}
+
+		Map<Connection, List<String>> expected = new ConcurrentHashMap<Connection, List<String>>();
+		for(Connection connection : server.getConnections()) expected.put(connection, new ArrayList<String>());
+		for(int i = 0; i < STRINGS; i++) {
+			String broadcast = line("Broadcast to everyone, the same bytes for every connection", i);
+			server.sendToAll(broadcast);
+			for(Connection connection : server.getConnections()) {
+				String alone = line("Only for connection " + connection.id + ", with its own history", i);
+				connection.send(alone);
+				expected.get(connection).add(broadcast.trim());
+				expected.get(connection).add(alone.trim());
+			}
+		}
+
+		// Wait for everything to arrive.
+		deadline = System.currentTimeMillis() + 10000;
+		while(!allReceived(clients)) {
+			if(System.currentTimeMillis() > deadline) break;
+			Thread.sleep(10);
+		}
+
+		boolean passed = countCompressed(server) == 2;
+		System.out.println("Compressed connections: " + countCompressed(server));
+		for(int i = 0; i < 2; i++) {
+			String from = i == 0 ? "From the first client" : "From the second client";
+			boolean ok = received(server, from) == STRINGS;
+			System.out.println((ok ? "ok     " : "FAILED ") + "server received " + received(server, from) + " strings " + from.toLowerCase());
+			passed &= ok;
+		}
+		for(Connection serverSide : server.getConnections()) {
+			Connection client = clientOf(serverSide, clients);
+			List<String> got = received.get(client);
+			boolean ok = got != null && got.equals(expected.get(serverSide));
+			System.out.println((ok ? "ok     " : "FAILED ") + "connection " + serverSide.id
+					+ (serverSide.tcp.isCompressed() ? " (compressed)" : " (plain)") + " received " + (got == null ? 0 : got.size()) + " strings");
+			passed &= ok;
+		}
+
+		compressed.stop();
+		plain.stop();
+		server.stop();
+
+		if(passed) {
+			System.out.println("\nTest passed!");
+		}
+		else {
+			fail("Strings were lost or corrupted.");
+		}
+	}
+
+	private static String line(String text, int i) {
+		return text + " #" + i + ", padded so it compresses well: aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa\n";
+	}
+
+	private static int countCompressed(StringServer server) {
+		int count = 0;
+		for(Connection connection : server.getConnections()) {
+			if(connection.tcp.isCompressed()) count++;
+		}
+		return count;
+	}
+
+	private static boolean allReceived(List<Connection> clients) {
+		for(Connection client : clients) {
+			List<String> got = received.get(client);
+			if(got == null || got.size() < 2 * STRINGS) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns how many strings starting with the text the server's connections received.
+	 */
+	private static int received(StringServer server, String text) {
+		int count = 0;
+		for(Connection connection : server.getConnections()) {
+			List<String> got = received.get(connection);
+			synchronized(got) {
+				for(String string : got) {
+					if(string.startsWith(text)) count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Finds the client end of a server connection by the connection alone strings it received.
+	 */
+	private static Connection clientOf(Connection serverSide, List<Connection> clients) {
+		String marker = "Only for connection " + serverSide.id + ",";
+		for(Connection client : clients) {
+			List<String> got = received.get(client);
+			if(got != null && got.size() > 1 && got.get(1).startsWith(marker)) return client;
+		}
+		return null;
+	}
+
+	private static void fail(String message) {
+		System.err.println(message);
+		System.err.println("\nTest failed!");
+		System.exit(1);
+	}
+}
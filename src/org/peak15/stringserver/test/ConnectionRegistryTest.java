@@ -0,0 +1,106 @@
+package org.peak15.stringserver.test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.peak15.stringserver.Connection;
+import org.peak15.stringserver.ConnectionRegistry;
+
+/**
+ * Test plan:
+ * Add and remove connections in random order, growing the registry to thousands and draining it
+ * again, and after every step check it against a HashMap: get() for every ID, size() and the snapshot.
+ *
+ * A snapshot taken before a change must not see it, removing a different connection with the same ID
+ * must do nothing, adding one with the same ID replaces it, and ID 0 is refused.
+ *
+ */
+public class ConnectionRegistryTest {
+	private static final Random random = new Random(5);
+
+	public static void main(String[] args) {
+		ConnectionRegistry registry = new ConnectionRegistry();
+		Map<Integer, Connection> expected = new HashMap<Integer, Connection>();
+
+		// Grow, then drain, with IDs that collide in a small table.
+		boolean consistent = true;
+		for(int round = 0; round < 2 && consistent; round++) {
+			for(int i = 0; i < 20000 && consistent; i++) {
+				boolean grow = round == 0 ? random.nextInt(4) != 0 : random.nextInt(4) == 0;
+				int id = 1 + random.nextInt(5000) * 16;
+				if(grow) {
+					Connection connection = connection(id);
+					registry.add(connection);
+					expected.put(id, connection);
+				}
+				else {
+					Connection connection = expected.remove(id);
+					if(connection != null && !registry.remove(connection)) consistent = false;
+				}
+				if(i % 500 == 0) consistent &= matches(registry, expected);
+			}
+			consistent &= matches(registry, expected);
+		}
+		for(Connection connection : expected.values().toArray(new Connection[0])) {
+			consistent &= registry.remove(connection);
+			expected.remove(connection.id);
+		}
+		consistent &= matches(registry, expected) && registry.size() == 0;
+		System.out.println((consistent ? "ok     " : "FAILED ") + "random adds and removes match a HashMap");
+
+		Connection first = connection(7);
+		registry.add(first);
+		Connection[] before = registry.snapshot();
+		registry.add(connection(8));
+		boolean snapshot = before.length == 1 && before[0] == first && registry.snapshot().length == 2
+				&& registry.asSet().size() == 2;
+		System.out.println((snapshot ? "ok     " : "FAILED ") + "snapshots are unaffected by later changes");
+
+		Connection impostor = connection(7);
+		boolean wrongInstance = !registry.remove(impostor) && registry.get(7) == first;
+		registry.add(impostor);
+		wrongInstance &= registry.get(7) == impostor && registry.size() == 2;
+		System.out.println((wrongInstance ? "ok     " : "FAILED ") + "only the registered connection is removed, the same ID replaces it");
+
+		boolean zero;
+		try {
+			registry.add(connection(0));
+			zero = false;
+		} catch(IllegalArgumentException e) {
+			zero = registry.get(0) == null;
+		}
+		System.out.println((zero ? "ok     " : "FAILED ") + "ID 0 is refused");
+
+		registry.clear();
+		boolean cleared = registry.size() == 0 && registry.snapshot().length == 0 && registry.get(7) == null;
+		System.out.println((cleared ? "ok     " : "FAILED ") + "clear() removes everything");
+
+		if(consistent && snapshot && wrongInstance && zero && cleared) {
+			System.out.println("\nTest passed!");
+		}
+		else {
+			System.err.println("\nTest failed!");
+			System.exit(1);
+		}
+	}
+
+	private static Connection connection(int id) {
+		Connection connection = new Connection(null);
+		connection.id = id;
+		return connection;
+	}
+
+	private static boolean matches(ConnectionRegistry registry, Map<Integer, Connection> expected) {
+		if(registry.size() != expected.size()) return false;
+		for(int id = 1; id < 5000 * 16; id += 16) {
+			if(registry.get(id) != expected.get(id)) return false;
+		}
+		Connection[] snapshot = registry.snapshot();
+		Set<Connection> values = new HashSet<Connection>(expected.values());
+		return snapshot.length == values.size() && values.containsAll(Arrays.asList(snapshot));
+	}
+}
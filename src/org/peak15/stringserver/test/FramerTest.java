@@ -0,0 +1,130 @@
+package org.peak15.stringserver.test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.peak15.stringserver.Framer;
+import org.peak15.stringserver.LengthPrefixedFramer;
+import org.peak15.stringserver.LineFramer;
+import org.peak15.stringserver.StringCodec;
+
+/**
+ * Test plan:
+ * For newline, 4 byte and varint framing, encode a set of strings into one stream, then frame it back
+ * from a single buffer, one byte at a time (which splits every prefix), and in random chunks.
+ * The strings sit on both sides of the varint size boundaries, and include newlines and the empty string.
+ *
+ * Then check that frames over the maximum length and malformed varints are rejected, and that
+ * encoding into a buffer that is too small reports it.
+ *
+ */
+public class FramerTest {
+	private static final Random random = new Random(15);
+
+	public static void main(String[] args) {
+		List<String> strings = new ArrayList<String>();
+		for(int length : new int[] {0, 1, 127, 128, 129, 16383, 16384, 16385, 70000}) strings.add(text(length));
+		strings.add("two\nlines");
+
+		List<String> lines = new ArrayList<String>();
+		for(int length : new int[] {1, 16, 255, 256, 257, 5000}) lines.add(text(length));
+
+		boolean roundTrip = roundTrip("length prefixed", Framer.LENGTH_PREFIXED, strings)
+				& roundTrip("varint prefixed", Framer.VARINT_PREFIXED, strings)
+				& roundTrip("newline", Framer.NEWLINE, lines);
+
+		boolean rejected = rejects("4 byte frame over the maximum", new LengthPrefixedFramer(StringCodec.US_ASCII, false),
+					new byte[] {0, 0, 0, 101, 'a'})
+				& rejects("varint frame over the maximum", new LengthPrefixedFramer(StringCodec.US_ASCII, true),
+					new byte[] {101, 'a'})
+				& rejects("negative 4 byte length", new LengthPrefixedFramer(StringCodec.US_ASCII, false),
+					new byte[] {(byte) 0x80, 0, 0, 0})
+				& rejects("varint longer than 5 bytes", new LengthPrefixedFramer(StringCodec.US_ASCII, true),
+					new byte[] {(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 1})
+				& rejects("line over the maximum", new LineFramer(StringCodec.US_ASCII),
+					(text(101) + "\n").getBytes());
+
+		boolean overflow = true;
+		for(Framer.Factory factory : new Framer.Factory[] {Framer.NEWLINE, Framer.LENGTH_PREFIXED, Framer.VARINT_PREFIXED}) {
+			Framer framer = factory.newFramer();
+			overflow &= !framer.encode(text(100), ByteBuffer.allocate(50)) && framer.encode(text(100), ByteBuffer.allocate(105));
+		}
+		System.out.println((overflow ? "ok     " : "FAILED ") + "encoding reports a buffer that is too small");
+
+		if(roundTrip && rejected && overflow) {
+			System.out.println("\nTest passed!");
+		}
+		else {
+			System.err.println("\nTest failed!");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Encodes the strings into one stream and frames it back whole, a byte at a time and in random chunks.
+	 */
+	private static boolean roundTrip(String name, Framer.Factory factory, List<String> strings) {
+		ByteBuffer stream = ByteBuffer.allocate(1 << 20);
+		Framer encoder = factory.newFramer();
+		for(String string : strings) {
+			// The newline framer sends strings as they are, so they carry their own terminator.
+			stream.put(encoder.encode(factory == Framer.NEWLINE ? string + "\n" : string));
+		}
+		stream.flip();
+		byte[] bytes = Arrays.copyOf(stream.array(), stream.limit());
+
+		boolean passed = true;
+		for(int chunk : new int[] {bytes.length, 1, 0}) {
+			Framer framer = factory.newFramer();
+			List<String> framed = new ArrayList<String>();
+			try {
+				for(int position = 0; position < bytes.length; ) {
+					int length = chunk > 0 ? chunk : 1 + random.nextInt(3000);
+					length = Math.min(length, bytes.length - position);
+					// Direct buffers, like the pooled read buffers.
+					ByteBuffer packet = ByteBuffer.allocateDirect(length);
+					packet.put(bytes, position, length);
+					packet.flip();
+					position += length;
+					String string;
+					while((string = framer.nextFrame(packet)) != null) framed.add(string);
+				}
+			} catch(IOException e) {
+				System.out.println("FAILED " + name + ": " + e.getMessage());
+				return false;
+			}
+			boolean ok = framed.equals(strings);
+			String pieces = chunk == bytes.length ? "whole" : chunk == 1 ? "byte at a time" : "random chunks";
+			System.out.println((ok ? "ok     " : "FAILED ") + name + ", " + pieces + ": " + framed.size() + " strings");
+			passed &= ok;
+		}
+		return passed;
+	}
+
+	/**
+	 * Frames bytes with a maximum frame length of 100, expecting an IOException.
+	 */
+	private static boolean rejects(String name, Framer framer, byte[] bytes) {
+		framer.setMaxFrameLength(100);
+		boolean passed;
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			while(framer.nextFrame(buffer) != null) {}
+			passed = false;
+		} catch(IOException e) {
+			passed = true;
+		}
+		System.out.println((passed ? "ok     " : "FAILED ") + "rejects " + name);
+		return passed;
+	}
+
+	private static String text(int length) {
+		char[] chars = new char[length];
+		for(int i = 0; i < length; i++) chars[i] = (char) ('a' + i % 26);
+		return new String(chars);
+	}
+}
@@ -0,0 +1,154 @@
+package org.peak15.stringserver.test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.peak15.stringserver.Connection;
+import org.peak15.stringserver.Listener;
+import org.peak15.stringserver.StringClient;
+import org.peak15.stringserver.StringServer;
+
+/**
+ * Test plan:
+ * Four clients connect. Clients 1, 2 and 3 ask to join group "red", clients 3 and 4 group "blue".
+ *
+ * Server
+ * Send "RED" to red, "BLUE" to blue, "RED EXCEPT" to red except client 3, and "NOBODY" to a group
+ * that does not exist.
+ *
+ * Verify each client received exactly the strings for its groups, in order. Then client 2 leaves red
+ * and client 4 disconnects, and verify red is down to clients 1 and 3, blue to client 3, and a group
+ * everyone has left is gone.
+ *
+ */
+public class GroupTest {
+	private static StringServer server;
+
+	private static final Map<Connection, List<String>> received = new ConcurrentHashMap<Connection, List<String>>();
+
+	private static Listener serverListener = new Listener() {
+		@Override
+		public void connected(Connection connection) {
+		}
+
+		@Override
+		public void disconnected(Connection connection) {
+		}
+
+		@Override
+		public void received(Connection connection, String string) {
+			String[] words = string.split(" ");
+			if(words[0].equals("JOIN")) {
+				for(int i = 1; i < words.length; i++) server.join(words[i], connection);
+				connection.send("JOINED\n");
+			}
+			else if(words[0].equals("LEAVE")) {
+				server.leave(words[1], connection);
+				connection.send("LEFT\n");
+			}
+		}
+	};
+
+	private static Listener clientListener = new Listener() {
+		@Override
+		public void connected(Connection connection) {
+			received.put(connection, Collections.synchronizedList(new ArrayList<String>()));
+		}
+
+		@Override
+		public void disconnected(Connection connection) {
+		}
+
+		@Override
+		public void received(Connection connection, String string) {
+			received.get(connection).add(string);
+		}
+	};
+
+	public static void main(String[] args) throws Exception {
+		server = new StringServer(serverListener);
+		server.setMetricsName("GroupTest");
+		server.start();
+		InetSocketAddress address = server.bind(new InetSocketAddress("127.0.0.1", 0));
+
+		StringClient client = new StringClient(clientListener);
+		client.start();
+		List<Connection> clients = new ArrayList<Connection>();
+		for(int i = 0; i < 4; i++) clients.add(client.connect(address));
+
+		clients.get(0).send("JOIN red\n");
+		clients.get(1).send("JOIN red\n");
+		clients.get(2).send("JOIN red blue\n");
+		clients.get(3).send("JOIN blue\n");
+		for(Connection c : clients) waitFor(c, 1);
+
+		Connection third = memberOf("red", "blue");
+		server.sendToGroup("red", "RED\n");
+		server.sendToGroup("blue", "BLUE\n");
+		server.sendToGroupExcept("red", third.id, "RED EXCEPT\n");
+		server.sendToGroup("green", "NOBODY\n");
+
+		boolean sends = check(clients.get(0), "JOINED", "RED", "RED EXCEPT")
+				& check(clients.get(1), "JOINED", "RED", "RED EXCEPT")
+				& check(clients.get(2), "JOINED", "RED", "BLUE")
+				& check(clients.get(3), "JOINED", "BLUE");
+
+		clients.get(1).send("LEAVE red\n");
+		waitFor(clients.get(1), 4);
+		client.disconnect(clients.get(3));
+		long deadline = System.currentTimeMillis() + 5000;
+		while(server.getConnections().size() > 3 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+
+		boolean membership = server.getGroup("red").size() == 2 && server.getGroup("red").contains(third)
+				&& server.getGroup("blue").size() == 1 && server.getGroup("blue").contains(third)
+				&& server.getGroup("green").isEmpty();
+		server.leave("blue", third);
+		membership &= server.getGroup("blue").isEmpty();
+		System.out.println((membership ? "ok     " : "FAILED ") + "leaving and disconnecting update the groups");
+
+		client.stop();
+		server.stop();
+
+		if(sends && membership) {
+			System.out.println("\nTest passed!");
+		}
+		else {
+			System.err.println("\nTest failed!");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Returns the server's connection that is in both groups.
+	 */
+	private static Connection memberOf(String group, String other) {
+		for(Connection connection : server.getGroup(group)) {
+			if(server.getGroup(other).contains(connection)) return connection;
+		}
+		return null;
+	}
+
+	private static void waitFor(Connection connection, int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while(System.currentTimeMillis() < deadline) {
+			List<String> got = received.get(connection);
+			if(got != null && got.size() >= count) return;
+			Thread.sleep(10);
+		}
+	}
+
+	private static boolean check(Connection connection, String... expected) throws InterruptedException {
+		waitFor(connection, expected.length);
+		// Give anything that should not have arrived a chance to.
+		Thread.sleep(100);
+		List<String> got = received.get(connection);
+		boolean passed = got.equals(Arrays.asList(expected));
+		System.out.println((passed ? "ok     " : "FAILED ") + "client received " + got);
+		return passed;
+	}
+}
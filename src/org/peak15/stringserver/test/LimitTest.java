@@ -0,0 +1,149 @@
+package org.peak15.stringserver.test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.peak15.stringserver.Connection;
+import org.peak15.stringserver.Listener;
+import org.peak15.stringserver.StringClient;
+import org.peak15.stringserver.StringServer;
+
+/**
+ * Test plan:
+ * Connect more clients than each limit allows, one limit at a time, and verify the server keeps
+ * exactly as many as the limit and counts the rest as rejects. All clients are on 127.0.0.1.
+ *
+ * Connection limit of 3:			Connect 5, 3 kept.
+ * Per-address limit of 2:			Connect 4, 2 kept.
+ * Accept rate of 3 per second:		Connect 6 at once, 3 kept.
+ *
+ * Then limit each client to 20000 bytes per second and have one send 60000 bytes at once. Verify
+ * every string arrives in order, that it takes at least the two seconds the limit allows for, and
+ * that the client was throttled and reported as rate limited.
+ *
+ */
+public class LimitTest {
+	private static StringServer server;
+	private static InetSocketAddress address;
+
+	private static final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+	private static volatile boolean rateLimited = false;
+
+	private static Listener serverListener = new Listener() {
+		@Override
+		public void connected(Connection connection) {
+		}
+
+		@Override
+		public void disconnected(Connection connection) {
+		}
+
+		@Override
+		public void received(Connection connection, String string) {
+			received.add(string);
+		}
+
+		@Override
+		public void rateLimited(Connection connection) {
+			rateLimited = true;
+		}
+	};
+
+	public static void main(String[] args) throws Exception {
+		server = new StringServer(serverListener);
+		server.setMetricsName("LimitTest");
+		server.start();
+		address = server.bind(new InetSocketAddress("127.0.0.1", 0));
+
+		server.setMaxConnections(3);
+		boolean passed = check("connection limit", 5, 3);
+		server.setMaxConnections(0);
+
+		server.setMaxConnectionsPerAddress(2);
+		passed &= check("per-address limit", 4, 2);
+		server.setMaxConnectionsPerAddress(0);
+
+		server.setMaxAcceptRate(3);
+		passed &= check("accept rate", 6, 3);
+		server.setMaxAcceptRate(0);
+
+		passed &= checkRate();
+
+		server.stop();
+
+		if(passed) {
+			System.out.println("\nTest passed!");
+		}
+		else {
+			System.err.println("\nTest failed!");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Connects clients, waits for the server to settle, and checks how many it kept.
+	 */
+	private static boolean check(String name, int connect, int kept) throws Exception {
+		long rejects = server.getMetrics().getRejects();
+		StringClient client = new StringClient(new TestListener());
+		client.start();
+		for(int i = 0; i < connect; i++) client.connect(address);
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while(server.getMetrics().getRejects() - rejects < connect - kept && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		// Give any connection wrongly admitted a chance to show up.
+		Thread.sleep(200);
+		int connections = server.getConnections().size();
+		long rejected = server.getMetrics().getRejects() - rejects;
+		boolean passed = connections == kept && rejected == connect - kept;
+		System.out.println((passed ? "ok     " : "FAILED ") + name + ": " + connections + " kept, " + rejected + " rejected");
+
+		client.stop();
+		deadline = System.currentTimeMillis() + 5000;
+		while(server.getConnections().size() > 0 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+		return passed;
+	}
+
+	/**
+	 * Sends three seconds' worth of a one second limit at once and checks how it is let through.
+	 */
+	private static boolean checkRate() throws Exception {
+		server.setInboundRateLimit(0, 20000);
+		StringClient client = new StringClient(new TestListener());
+		client.start();
+		Connection connection = client.connect(address);
+
+		// 600 strings of 100 bytes each, newline included.
+		List<String> sent = new ArrayList<String>();
+		StringBuilder padding = new StringBuilder();
+		while(padding.length() < 90) padding.append('x');
+		for(int i = 0; i < 600; i++) sent.add(String.format("%05d", i) + padding + "\n");
+		long throttles = server.getMetrics().getThrottles();
+		long start = System.nanoTime();
+		connection.send(sent);
+
+		long deadline = System.currentTimeMillis() + 10000;
+		while(received.size() < sent.size() && System.currentTimeMillis() < deadline) Thread.sleep(10);
+		long elapsed = (System.nanoTime() - start) / 1000000;
+
+		List<String> expected = new ArrayList<String>();
+		for(String string : sent) expected.add(string.trim());
+		boolean complete = received.equals(expected);
+		System.out.println((complete ? "ok     " : "FAILED ") + "rate limit: " + received.size() + " strings received in order");
+		// The first second's worth may arrive straight away, and reads overshoot by up to a buffer.
+		boolean slowed = elapsed >= 1500;
+		System.out.println((slowed ? "ok     " : "FAILED ") + "rate limit: took " + elapsed + " ms");
+		long throttled = server.getMetrics().getThrottles() - throttles;
+		boolean reported = throttled > 0 && rateLimited;
+		System.out.println((reported ? "ok     " : "FAILED ") + "rate limit: throttled " + throttled + " times"
+				+ (rateLimited ? ", reported" : ", not reported"));
+
+		client.stop();
+		server.setInboundRateLimit(0, 0);
+		return complete && slowed && reported;
+	}
+}
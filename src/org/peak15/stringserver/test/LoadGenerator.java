@@ -0,0 +1,259 @@
+package org.peak15.stringserver.test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.peak15.stringserver.Connection;
+import org.peak15.stringserver.Listener;
+import org.peak15.stringserver.StringServer;
+
+/**
+ * Drives an echo server with many loopback clients and reports throughput and latency percentiles.
+ *
+ * Every message starts with the time it was due to be sent, and the echo listener sends it straight
+ * back, so each client measures the full round trip. With a fixed rate, messages are stamped with
+ * the time they were scheduled rather than the time they went out, so a server that falls behind
+ * shows up in the latencies instead of silently lowering the rate. With a rate of 0, every client
+ * sends its next message as soon as the previous one comes back.
+ *
+ * Usage: LoadGenerator [clients] [rate] [size] [seconds] [client threads] [server worker threads]
+ * (default: 1000 0 64 10 1 available processors)
+ * The rate is in messages per second across all clients, and the size in bytes including the newline.
+ * Large client counts need a file descriptor limit of at least twice the count.
+ */
+public class LoadGenerator {
+	private static final int PORT = 1337;
+	private static final long WARMUP_NANOS = 2000000000L;
+
+	private static volatile boolean running;
+	private static volatile boolean recording;
+
+	public static void main(String[] args) throws Exception {
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		long rate = args.length > 1 ? Long.parseLong(args[1]) : 0;
+		int size = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+		int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+		int threads = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+		int workers = args.length > 5 ? Integer.parseInt(args[5]) : StringServer.DEFAULT_WORKER_THREADS;
+
+		StringServer server = new StringServer(new Listener() {
+			@Override
+			public void connected(Connection connection) {}
+
+			@Override
+			public void disconnected(Connection connection) {}
+
+			@Override
+			public void received(Connection connection, String string) {
+				connection.send(string + "\n");
+			}
+		}, workers);
+		server.start();
+		server.bind(PORT);
+
+		// Spread the clients and the rate evenly over the client threads.
+		running = true;
+		long connectStart = System.nanoTime();
+		List<ClientThread> clientThreads = new ArrayList<ClientThread>(threads);
+		for(int i = 0; i < threads; i++) {
+			int count = clients / threads + (i < clients % threads ? 1 : 0);
+			clientThreads.add(new ClientThread(count, (double) rate * count / clients, size));
+		}
+		System.out.printf("Connected %d clients in %.1f seconds.%n", clients, (System.nanoTime() - connectStart) / 1e9);
+
+		List<Thread> started = new ArrayList<Thread>(threads);
+		for(int i = 0; i < threads; i++) {
+			Thread thread = new Thread(clientThreads.get(i), "Load Generator " + i);
+			thread.start();
+			started.add(thread);
+		}
+
+		Thread.sleep(WARMUP_NANOS / 1000000);
+		recording = true;
+		long start = System.nanoTime();
+		Thread.sleep(seconds * 1000L);
+		recording = false;
+		long elapsed = System.nanoTime() - start;
+
+		running = false;
+		for(Thread thread : started) thread.join();
+		server.stop();
+
+		LatencyHistogram latencies = new LatencyHistogram();
+		long sent = 0;
+		for(ClientThread clientThread : clientThreads) {
+			latencies.add(clientThread.latencies);
+			sent += clientThread.sent;
+		}
+
+		System.out.println(clients + " clients, " + (rate == 0 ? "closed loop" : rate + " messages/sec")
+				+ ", " + size + " byte messages, " + workers + " server worker threads:");
+		System.out.printf("  Sent:       %,.0f messages/sec%n", sent / (elapsed / 1e9));
+		System.out.printf("  Received:   %,.0f messages/sec%n", latencies.getCount() / (elapsed / 1e9));
+		System.out.printf("  Latency:    mean %,.1f us%n", latencies.getMean() / 1000);
+		System.out.printf("              p50 %,.1f us, p99 %,.1f us, p99.9 %,.1f us, max %,.1f us%n",
+				latencies.getPercentile(50) / 1000.0, latencies.getPercentile(99) / 1000.0,
+				latencies.getPercentile(99.9) / 1000.0, latencies.getMax() / 1000.0);
+	}
+
+	/**
+	 * One client connection and its unfinished input and output.
+	 */
+	private static class Client {
+		final SocketChannel channel;
+		final SelectionKey key;
+		ByteBuffer out = ByteBuffer.allocate(256);
+		final StringBuilder line = new StringBuilder();
+		long nextSend;
+
+		Client(SocketChannel channel, SelectionKey key) {
+			this.channel = channel;
+			this.key = key;
+		}
+	}
+
+	/**
+	 * Runs a share of the clients on one selector.
+	 */
+	private static class ClientThread implements Runnable {
+		final Selector selector;
+		final List<Client> clients;
+		final double rate;
+		final int size;
+		final LatencyHistogram latencies = new LatencyHistogram();
+		long sent = 0;
+
+		/**
+		 * Connects the clients, so the load starts only once every client is connected.
+		 */
+		ClientThread(int count, double rate, int size) throws IOException {
+			this.rate = rate;
+			this.size = size;
+
+			selector = Selector.open();
+			clients = new ArrayList<Client>(count);
+			for(int i = 0; i < count; i++) {
+				SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", PORT));
+				channel.configureBlocking(false);
+				SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+				Client client = new Client(channel, key);
+				key.attach(client);
+				clients.add(client);
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				int count = clients.size();
+
+				// Stagger the first sends so the clients do not all fire at once.
+				long interval = rate > 0 ? (long) (1e9 * count / rate) : 0;
+				long now = System.nanoTime();
+				for(int i = 0; i < count; i++) clients.get(i).nextSend = now + interval * i / count;
+
+				if(interval == 0) {
+					for(Client client : clients) send(client, System.nanoTime());
+				}
+
+				ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+				while(running) {
+					if(interval > 0) {
+						now = System.nanoTime();
+						for(Client client : clients) {
+							while(client.nextSend <= now) {
+								send(client, client.nextSend);
+								client.nextSend += interval;
+							}
+						}
+					}
+
+					selector.select(1);
+					Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+					while(iter.hasNext()) {
+						SelectionKey key = iter.next();
+						iter.remove();
+						Client client = (Client) key.attachment();
+						if(key.isWritable()) flush(client);
+						if(key.isReadable()) read(client, buffer, interval == 0);
+					}
+				}
+
+			} catch(IOException e) {
+				StringServer.printErr("Load generator client failed: " + e.getMessage());
+			} finally {
+				for(Client client : clients) {
+					try {
+						client.channel.close();
+					} catch(IOException ignored) {}
+				}
+				try {
+					selector.close();
+				} catch(IOException ignored) {}
+			}
+		}
+
+		/**
+		 * Queues a message stamped with the given time and writes as much as the socket takes.
+		 */
+		private void send(Client client, long timestamp) throws IOException {
+			String stamp = Long.toString(timestamp);
+			int length = Math.max(size, stamp.length() + 1);
+			if(client.out.remaining() < length) {
+				client.out.flip();
+				ByteBuffer bigger = ByteBuffer.allocate(Math.max(client.out.capacity() * 2, client.out.remaining() + length));
+				bigger.put(client.out);
+				client.out = bigger;
+			}
+
+			for(int i = 0; i < stamp.length(); i++) client.out.put((byte) stamp.charAt(i));
+			for(int i = stamp.length(); i < length - 1; i++) client.out.put((byte) (i == stamp.length() ? ' ' : 'x'));
+			client.out.put((byte) '\n');
+			if(recording) sent++;
+			flush(client);
+		}
+
+		private void flush(Client client) throws IOException {
+			client.out.flip();
+			client.channel.write(client.out);
+			client.out.compact();
+			if(client.out.position() > 0) {
+				client.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+			else {
+				client.key.interestOps(SelectionKey.OP_READ);
+			}
+		}
+
+		/**
+		 * Reads every echoed line available and records its round trip.
+		 */
+		private void read(Client client, ByteBuffer buffer, boolean closedLoop) throws IOException {
+			buffer.clear();
+			if(client.channel.read(buffer) < 0) throw new IOException("Server closed a connection.");
+			buffer.flip();
+
+			while(buffer.hasRemaining()) {
+				char c = (char) buffer.get();
+				if(c != '\n') {
+					client.line.append(c);
+					continue;
+				}
+
+				long now = System.nanoTime();
+				int space = client.line.indexOf(" ");
+				long timestamp = Long.parseLong(space < 0 ? client.line.toString() : client.line.substring(0, space));
+				client.line.setLength(0);
+				if(recording) latencies.record(now - timestamp);
+				if(closedLoop && running) send(client, now);
+			}
+		}
+	}
+}